@@ -0,0 +1,71 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.commons.codec.digest.Crypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthBenchmark {
+
+    // Password checks. authenticateUser doesn't use the login cache, so every call hashes,
+    // crypt alone shows how much of that is the hash itself.
+    private Path directory;
+    private ChatDatabase db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        directory = Files.createTempDirectory("chat-benchmark");
+        db = ChatDatabase.getInstance();
+        db.open("jdbc:sqlite:" + directory.resolve("benchmark.db"));
+        db.addUser("user", "bench", "correct horse battery staple", "bench@example.com");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean authenticateUser() throws SQLException {
+        return db.authenticateUser("bench", "correct horse battery staple");
+    }
+
+    @Benchmark
+    public boolean authenticateUnknownUser() throws SQLException {
+        return db.authenticateUser("nobody", "correct horse battery staple");
+    }
+
+    @Benchmark
+    public String crypt() {
+        return Crypt.crypt("correct horse battery staple", "$6$benchmarksalt$");
+    }
+}
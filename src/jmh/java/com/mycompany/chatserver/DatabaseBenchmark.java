@@ -0,0 +1,100 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    // Reads and writes against a temporary database holding tableSize messages in one channel.
+    // Inserts go to another channel so the read benchmarks see the same table throughout.
+    private static final LocalDateTime START = LocalDateTime.of(2021, 1, 1, 0, 0);
+
+    @Param({"1000", "100000", "1000000"})
+    public int tableSize;
+
+    private Path directory;
+    private ChatDatabase db;
+    private long sinceMiddle;
+    private long middleId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        // The database logs every insert, which would only measure the console
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        directory = Files.createTempDirectory("chat-benchmark");
+        db = ChatDatabase.getInstance();
+        db.open("jdbc:sqlite:" + directory.resolve("benchmark.db"));
+
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < tableSize; i++) {
+            batch.add(new ChatMessage("bench", START.plusNanos(i * 1000000L), "user" + (i % 100),
+                    "Message number " + i + " with some ordinary chat text", ""));
+            if (batch.size() == 10000 || i == tableSize - 1) {
+                db.insertMessages(batch);
+                batch.clear();
+            }
+        }
+        // Older than what the message cache keeps, so these reads go to the database
+        sinceMiddle = START.plusNanos(tableSize / 2 * 1000000L).toInstant(ZoneOffset.UTC).toEpochMilli();
+        middleId = tableSize / 2;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void insertMessage() {
+        db.insertMessage(new ChatMessage("insert", LocalDateTime.now(), "bench", "Hello benchmark", ""));
+    }
+
+    @Benchmark
+    public ArrayList<ChatMessage> getNewestMessages() {
+        return db.getMessages("bench", -1);
+    }
+
+    @Benchmark
+    public ArrayList<ChatMessage> getMessagesSince() {
+        return db.getMessages("bench", sinceMiddle);
+    }
+
+    @Benchmark
+    public ArrayList<ChatMessage> getPageBefore() {
+        return db.getMessagesBeforeId("bench", middleId, 100);
+    }
+}
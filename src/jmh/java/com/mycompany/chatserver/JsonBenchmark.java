@@ -0,0 +1,76 @@
+package com.mycompany.chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    // Encoding a GET /chat response. orgJson is the way the response was built before
+    // MessageJsonWriter, kept as the baseline.
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+
+    @Param({"1", "100", "10000"})
+    public int messageCount;
+
+    private List<ChatMessage> messages;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        messages = new ArrayList<>();
+        LocalDateTime start = LocalDateTime.of(2021, 4, 13, 7, 57, 47);
+        for (int i = 0; i < messageCount; i++) {
+            messages.add(new ChatMessage("main", start.plusSeconds(i), "user" + (i % 20),
+                    "Message " + i + ": \"quoted\" text with some ümlauts and a </tag>", i % 10 == 0 ? "<edited>" : ""));
+        }
+        encoded = MessageJsonWriter.toBytes(messages);
+    }
+
+    @Benchmark
+    public byte[] messageJsonWriter() {
+        return MessageJsonWriter.toBytes(messages);
+    }
+
+    @Benchmark
+    public byte[] orgJson() {
+        JSONArray responseMessages = new JSONArray();
+        for (ChatMessage message : messages) {
+            JSONObject json = new JSONObject();
+            json.put("user", message.userName);
+            json.put("message", message.message);
+            json.put("sent", message.sent.atZone(ZoneId.of("UTC")).format(FORMATTER));
+            json.put("tag", message.tag);
+            responseMessages.put(json);
+        }
+        return responseMessages.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] gzip() {
+        return ResponseCompression.compress(encoded, ResponseCompression.GZIP);
+    }
+}
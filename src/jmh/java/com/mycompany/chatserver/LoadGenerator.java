@@ -0,0 +1,399 @@
+package com.mycompany.chatserver;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.json.JSONObject;
+
+public class LoadGenerator {
+
+    // Drives a running ChatServer over HTTPS with a mix of posters, pollers, channel listers
+    // and editors, then reports throughput and latency percentiles per operation.
+    //
+    // Requests are started on a fixed schedule whether or not earlier ones have finished
+    // (open loop), and latency is measured from the time a request was due rather than when
+    // it was actually sent. A slow server therefore shows up as high latency instead of
+    // quietly lowering the request rate.
+    //
+    // java -Dchatserver.load.users=50 -cp target/benchmarks.jar com.mycompany.chatserver.LoadGenerator
+    private static final DateTimeFormatter SENT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final String url = ChatConfig.getString("load.url", "https://localhost:8001");
+    private final int users = ChatConfig.getInt("load.users", 20);
+    private final int channels = ChatConfig.getInt("load.channels", 4);
+    private final int warmupSeconds = ChatConfig.getInt("load.warmupSeconds", 10);
+    private final int durationSeconds = ChatConfig.getInt("load.durationSeconds", 60);
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final HttpClient client;
+    private final List<Operation> operations = new ArrayList<>();
+    private final String[] tokens;
+    private final AtomicReferenceArray<String> lastModified;
+    private final AtomicLong newestId = new AtomicLong();
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+
+    private static class Operation {
+
+        final String name;
+        final int perSecond;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder late = new LongAdder();
+
+        // Measured requests without a response yet, counted as errors when the results are taken
+        private int outstanding;
+        private boolean closed;
+
+        Operation(String name, int perSecond) {
+            this.name = name;
+            this.perSecond = perSecond;
+        }
+
+        double throughput(int seconds) {
+            return latency.getCount() / (double) seconds;
+        }
+
+        synchronized void started() {
+            outstanding++;
+        }
+
+        synchronized boolean finished() {
+            // False once the results are taken, the response is then already counted as an error
+            if (closed) {
+                return false;
+            }
+            outstanding--;
+            return true;
+        }
+
+        synchronized int getOutstanding() {
+            return outstanding;
+        }
+
+        synchronized void close() {
+            closed = true;
+            errors.add(outstanding);
+        }
+    }
+
+    public LoadGenerator() throws Exception {
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .sslContext(trustKeystore(ChatConfig.getString("load.keystore", "keystore.jks"),
+                        ChatConfig.getString("load.keystorePassword", "123456789")))
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        tokens = new String[users];
+        lastModified = new AtomicReferenceArray<>(users);
+
+        operations.add(new Operation("post", ChatConfig.getInt("load.postPerSecond", 50)));
+        operations.add(new Operation("poll", ChatConfig.getInt("load.pollPerSecond", 200)));
+        operations.add(new Operation("listChannels", ChatConfig.getInt("load.listPerSecond", 20)));
+        operations.add(new Operation("edit", ChatConfig.getInt("load.editPerSecond", 10)));
+    }
+
+    private static SSLContext trustKeystore(String path, String password) throws Exception {
+        // Trust the server's own keystore, the bundled certificate is self-signed
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(path)) {
+            keyStore.load(in, password.toCharArray());
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    private String userName(int user) {
+        return "load-" + runId + "-" + user;
+    }
+
+    private String channelOf(int user) {
+        return "load-" + (user % channels);
+    }
+
+    private void setUp() throws Exception {
+        // Registering and logging in hash a password each, so the users are made before measuring
+        for (int i = 0; i < users; i++) {
+            JSONObject details = new JSONObject();
+            details.put("username", userName(i));
+            details.put("password", "load-password");
+            details.put("email", userName(i) + "@example.com");
+            details.put("role", "user");
+            HttpResponse<String> response = send(post("/registration", new JSONObject().put("userdetails", details)));
+            if (response.statusCode() != 200) {
+                throw new IOException("Registering " + userName(i) + " failed with " + response.statusCode() + ": " + response.body()
+                        + " (run the server with -Dchatserver.ratelimit.enabled=false)");
+            }
+
+            JSONObject login = new JSONObject().put("username", userName(i)).put("password", "load-password");
+            response = send(post("/login", login));
+            if (response.statusCode() != 200) {
+                throw new IOException("Logging in " + userName(i) + " failed with " + response.statusCode() + ": " + response.body());
+            }
+            tokens[i] = new JSONObject(response.body()).getString("token");
+        }
+
+        // Every channel gets a message, so pollers and editors have something to work on
+        for (int i = 0; i < Math.min(users, channels); i++) {
+            send(authorized(i, post("/chat", newMessage(i))));
+        }
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest.Builder post(String path, JSONObject body) {
+        return HttpRequest.newBuilder(URI.create(url + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+    }
+
+    private HttpRequest.Builder get(String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(url + pathAndQuery)).timeout(REQUEST_TIMEOUT).GET();
+    }
+
+    private HttpRequest.Builder authorized(int user, HttpRequest.Builder request) {
+        return request.header("Authorization", "Bearer " + tokens[user]);
+    }
+
+    private JSONObject newMessage(int user) {
+        JSONObject message = new JSONObject();
+        message.put("user", userName(user));
+        message.put("channel", channelOf(user));
+        message.put("message", "Load test message " + ThreadLocalRandom.current().nextInt(1000000));
+        message.put("sent", SENT_FORMAT.format(Instant.now().atOffset(ZoneOffset.UTC)));
+        return message;
+    }
+
+    private HttpRequest request(Operation operation, int user) {
+        switch (operation.name) {
+            case "post":
+                return authorized(user, post("/chat", newMessage(user))).build();
+            case "poll": {
+                HttpRequest.Builder request = authorized(user, get("/chat?channel=" + channelOf(user)));
+                String since = lastModified.get(user);
+                if (since != null) {
+                    request.header("If-Modified-Since", since);
+                }
+                return request.build();
+            }
+            case "listChannels":
+                return authorized(user, get("/chat?listChannels")).build();
+            default: {
+                // Ids aren't returned to the poster, so edit a recent message by id. The
+                // server only changes it if this user posted it, either way it is a write.
+                long newest = Math.max(1, newestId.get());
+                JSONObject edit = newMessage(user);
+                edit.put("action", "editMessage");
+                edit.put("messageid", 1 + ThreadLocalRandom.current().nextLong(newest));
+                return authorized(user, HttpRequest.newBuilder(URI.create(url + "/chat"))
+                        .timeout(REQUEST_TIMEOUT)
+                        .header("Content-Type", "application/json")
+                        .PUT(HttpRequest.BodyPublishers.ofString(edit.toString()))).build();
+            }
+        }
+    }
+
+    private void completed(Operation operation, int user, long due, HttpResponse<String> response, Throwable error) {
+        long end = System.nanoTime();
+        if (due < measureFrom || due >= measureUntil || !operation.finished()) {
+            return;
+        }
+        int status = response != null ? response.statusCode() : -1;
+        if (error != null || status >= 400) {
+            operation.errors.increment();
+            return;
+        }
+        operation.latency.record(end - due);
+        if (operation.name.equals("poll") && status == 200) {
+            response.headers().firstValue("Last-Modified").ifPresent(value -> lastModified.set(user, value));
+        }
+    }
+
+    private void schedule(Operation operation, long start, long end) {
+        // One thread per operation starts requests at their due times, responses are handled
+        // by the client's executor, so a slow response never delays the next request
+        if (operation.perSecond <= 0) {
+            return;
+        }
+        long interval = TimeUnit.SECONDS.toNanos(1) / operation.perSecond;
+        Thread thread = new Thread(() -> {
+            long sent = 0;
+            for (long due = start; due < end; due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else if (wait < -TimeUnit.MILLISECONDS.toNanos(10)) {
+                    // The generator itself is behind, its latency is included in the results
+                    operation.late.increment();
+                }
+                int user = (int) (sent++ % users);
+                long requestDue = due;
+                if (due >= measureFrom) {
+                    operation.started();
+                }
+                client.sendAsync(request(operation, user), HttpResponse.BodyHandlers.ofString())
+                        .whenComplete((response, error) -> completed(operation, user, requestDue, response, error));
+            }
+        }, "load-" + operation.name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void updateNewestId() {
+        // Newest message id, from the cursor of a one-message page (there once a channel has two)
+        try {
+            HttpResponse<String> response = send(authorized(0, get("/chat?channel=" + channelOf(0) + "&limit=1")));
+            if (response.statusCode() == 200) {
+                newestId.accumulateAndGet(new JSONObject(response.body()).optLong("nextCursor", 0), Math::max);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Editors keep the previous range
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean run() throws Exception {
+        System.out.println("Registering " + users + " users at " + url);
+        setUp();
+        updateNewestId();
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        for (Operation operation : operations) {
+            schedule(operation, start, measureUntil);
+        }
+        System.out.println("Warming up for " + warmupSeconds + " s, measuring for " + durationSeconds + " s");
+        while (System.nanoTime() < measureUntil) {
+            Thread.sleep(1000);
+            updateNewestId();
+        }
+        // Wait for the responses of the last requests, any still missing after the request
+        // timeout count as errors rather than silently leaving out the slowest requests
+        long waitUntil = System.nanoTime() + REQUEST_TIMEOUT.toNanos();
+        while (outstanding() > 0 && System.nanoTime() < waitUntil) {
+            Thread.sleep(100);
+        }
+        for (Operation operation : operations) {
+            operation.close();
+        }
+
+        report();
+        String save = ChatConfig.getString("load.saveBaseline", null);
+        if (save != null) {
+            saveBaseline(save);
+        }
+        String baseline = ChatConfig.getString("load.baseline", null);
+        return baseline == null || compareToBaseline(baseline);
+    }
+
+    private int outstanding() {
+        int outstanding = 0;
+        for (Operation operation : operations) {
+            outstanding += operation.getOutstanding();
+        }
+        return outstanding;
+    }
+
+    private void report() {
+        System.out.println(String.format("%-14s %9s %7s %10s %9s %9s %9s %9s", "operation", "count", "errors",
+                "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (Operation operation : operations) {
+            LatencyHistogram h = operation.latency;
+            System.out.println(String.format("%-14s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f", operation.name,
+                    h.getCount(), operation.errors.sum(), operation.throughput(durationSeconds),
+                    h.valueAtPercentile(50) / 1e6, h.valueAtPercentile(99) / 1e6,
+                    h.valueAtPercentile(99.9) / 1e6, h.valueAtPercentile(100) / 1e6));
+            if (operation.late.sum() > 0) {
+                System.out.println("  " + operation.name + ": generator fell behind " + operation.late.sum() + " times");
+            }
+        }
+    }
+
+    private void saveBaseline(String path) throws IOException {
+        Properties baseline = new Properties();
+        for (Operation operation : operations) {
+            baseline.setProperty(operation.name + ".throughput", Double.toString(operation.throughput(durationSeconds)));
+            baseline.setProperty(operation.name + ".p99", Long.toString(operation.latency.valueAtPercentile(99)));
+            baseline.setProperty(operation.name + ".p999", Long.toString(operation.latency.valueAtPercentile(99.9)));
+        }
+        try (OutputStream out = new FileOutputStream(path)) {
+            baseline.store(out, "ChatServer load test baseline, latencies in nanoseconds");
+        }
+        System.out.println("Baseline saved to " + path);
+    }
+
+    private boolean compareToBaseline(String path) throws IOException {
+        // Fails when throughput drops or p99 / p99.9 latency grows by more than the tolerance
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            baseline.load(in);
+        }
+        double tolerance = ChatConfig.getInt("load.tolerancePercent", 20) / 100.0;
+        boolean passed = true;
+        for (Operation operation : operations) {
+            String throughput = baseline.getProperty(operation.name + ".throughput");
+            if (throughput != null && operation.throughput(durationSeconds) < Double.parseDouble(throughput) * (1 - tolerance)) {
+                System.out.println("FAIL " + operation.name + " throughput " + operation.throughput(durationSeconds)
+                        + " ops/s, baseline " + throughput);
+                passed = false;
+            }
+            passed &= checkLatency(operation, "p99", operation.latency.valueAtPercentile(99), baseline, tolerance);
+            passed &= checkLatency(operation, "p999", operation.latency.valueAtPercentile(99.9), baseline, tolerance);
+            if (operation.errors.sum() > 0) {
+                System.out.println("FAIL " + operation.name + " had " + operation.errors.sum() + " errors");
+                passed = false;
+            }
+        }
+        System.out.println(passed ? "Within " + Math.round(tolerance * 100) + " % of baseline " + path : "Slower than baseline " + path);
+        return passed;
+    }
+
+    private static boolean checkLatency(Operation operation, String percentile, long nanos, Properties baseline, double tolerance) {
+        String value = baseline.getProperty(operation.name + "." + percentile);
+        if (value != null && nanos > Long.parseLong(value) * (1 + tolerance)) {
+            System.out.println("FAIL " + operation.name + " " + percentile + " " + nanos / 1e6 + " ms, baseline "
+                    + Long.parseLong(value) / 1e6 + " ms");
+            return false;
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = new LoadGenerator().run();
+        System.exit(passed ? 0 : 1);
+    }
+}
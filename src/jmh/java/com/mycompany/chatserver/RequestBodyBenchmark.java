@@ -0,0 +1,167 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+    // Parsing a POST /chat body. readAllLines is how bodies were read before RequestBodyReader.
+    @Param({"64", "4096", "60000"})
+    public int messageLength;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder(messageLength);
+        while (text.length() < messageLength) {
+            text.append("Lorem ipsum dolor sit amet, ä ö \"quoted\" ");
+        }
+        text.setLength(messageLength);
+        JSONObject json = new JSONObject();
+        json.put("user", "bench");
+        json.put("message", text.toString());
+        json.put("sent", "2021-04-13T07:57:47.123Z");
+        json.put("channel", "main");
+        body = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public JSONObject requestBodyReader() throws IOException {
+        return RequestBodyReader.readJson(new BodyExchange(body));
+    }
+
+    @Benchmark
+    public JSONObject readAllLines() throws IOException {
+        try (InputStream stream = new BodyExchange(body).getRequestBody()) {
+            String text = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))
+                    .lines().collect(Collectors.joining("\n"));
+            return new JSONObject(text);
+        }
+    }
+
+    private static class BodyExchange extends HttpExchange {
+
+        // Just enough of an exchange to hand a request body to the reader
+        private final Headers requestHeaders = new Headers();
+        private final InputStream requestBody;
+
+        BodyExchange(byte[] body) {
+            requestHeaders.set("Content-Length", Integer.toString(body.length));
+            requestHeaders.set("Content-Type", "application/json");
+            requestBody = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return new Headers();
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/chat");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "POST";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return new InetSocketAddress(0);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return -1;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return new InetSocketAddress(0);
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
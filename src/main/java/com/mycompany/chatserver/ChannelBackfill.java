@@ -0,0 +1,56 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.util.List;
+import org.json.JSONObject;
+
+public class ChannelBackfill {
+
+    // Messages a resumed subscriber missed, read page by page until it has caught up. A
+    // subscriber more than the limit behind gets a reset event instead of the rest, telling
+    // it to fetch the missing messages with ?after= and the given id.
+    private static final int PAGE_SIZE = 500;
+
+    public interface Sink {
+
+        void message(ChannelEvent event) throws IOException;
+
+        void reset(String json) throws IOException;
+    }
+
+    private ChannelBackfill() {
+    }
+
+    public static long send(String channel, long lastEventId, int limit, Sink sink) throws IOException {
+        // Returns the id of the newest message sent, live message events up to it are duplicates
+        ChatDatabase db = ChatDatabase.getInstance();
+        long lastSentId = lastEventId;
+        int sent = 0;
+        while (true) {
+            int pageSize = Math.min(PAGE_SIZE, limit - sent);
+            if (pageSize <= 0) {
+                if (!db.getMessagesAfterId(channel, lastSentId, 1).isEmpty()) {
+                    sink.reset(resetJson(channel, lastSentId));
+                }
+                return lastSentId;
+            }
+            List<ChatMessage> page = db.getMessagesAfterId(channel, lastSentId, pageSize);
+            for (ChatMessage message : page) {
+                sink.message(new ChannelEvent(message));
+                lastSentId = message.id;
+                sent++;
+            }
+            if (page.size() < pageSize) {
+                return lastSentId;
+            }
+        }
+    }
+
+    private static String resetJson(String channel, long after) {
+        JSONObject json = new JSONObject();
+        json.put("type", "reset");
+        json.put("channel", channel);
+        json.put("after", after);
+        return json.toString();
+    }
+}
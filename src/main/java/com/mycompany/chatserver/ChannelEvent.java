@@ -0,0 +1,69 @@
+package com.mycompany.chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import org.json.JSONObject;
+
+public class ChannelEvent {
+
+    // A committed change to a channel, shared by every subscriber of the channel.
+    // The serialized forms are built once, on first use.
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+
+    public final ChatMessage message;
+    public final String type;
+    private volatile String json;
+    private volatile byte[] sseBytes;
+    private volatile byte[] webSocketFrame;
+
+    public ChannelEvent(ChatMessage message) {
+        this.message = message;
+        if ("<deleted>".equals(message.tag)) {
+            type = "deleted";
+        } else if ("<edited>".equals(message.tag)) {
+            type = "edited";
+        } else {
+            type = "message";
+        }
+    }
+
+    public String toJson() {
+        String result = json;
+        if (result == null) {
+            JSONObject obj = new JSONObject();
+            obj.put("id", message.id);
+            obj.put("channel", message.channel);
+            obj.put("user", message.userName);
+            obj.put("message", message.message);
+            obj.put("sent", message.sent.atZone(ZoneId.of("UTC")).format(FORMATTER));
+            obj.put("tag", message.tag);
+            obj.put("type", type);
+            result = obj.toString();
+            json = result;
+        }
+        return result;
+    }
+
+    public byte[] toServerSentEvent() {
+        byte[] result = sseBytes;
+        if (result == null) {
+            // Only new messages carry an event id, so a client's Last-Event-ID always
+            // points at the newest message it has received and can be resumed from
+            String id = type.equals("message") ? "id: " + message.id + "\n" : "";
+            String event = id + "event: " + type + "\ndata: " + toJson() + "\n\n";
+            result = event.getBytes(StandardCharsets.UTF_8);
+            sseBytes = result;
+        }
+        return result;
+    }
+
+    public byte[] toWebSocketFrame() {
+        byte[] result = webSocketFrame;
+        if (result == null) {
+            result = WebSocketCodec.encodeText(toJson());
+            webSocketFrame = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+package com.mycompany.chatserver;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChannelSnapshotCache {
+
+    // Encoded responses for the newest messages of each channel, tagged with the channel
+    // version they were built from. A snapshot is only used while the version is current.
+    private final ConcurrentHashMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final int maxSnapshots;
+
+    // Part of every ETag so tags from an earlier server run never match
+    private final String epoch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    public static class Snapshot {
+
+        final long version;
+        final String etag;
+        final byte[] body;
+        final String lastModified;
+        final long latest;
+
+        // Compressed once on first request and then shared, like the body itself
+        private volatile byte[] gzipBody;
+        private volatile byte[] deflateBody;
+
+        Snapshot(long version, String etag, byte[] body, String lastModified, long latest) {
+            this.version = version;
+            this.etag = etag;
+            this.body = body;
+            this.lastModified = lastModified;
+            this.latest = latest;
+        }
+
+        byte[] compressedBody(String encoding) {
+            boolean gzip = encoding.equals(ResponseCompression.GZIP);
+            byte[] compressed = gzip ? gzipBody : deflateBody;
+            if (compressed == null) {
+                compressed = ResponseCompression.compress(body, encoding);
+                if (gzip) {
+                    gzipBody = compressed;
+                } else {
+                    deflateBody = compressed;
+                }
+            }
+            return compressed;
+        }
+    }
+
+    public ChannelSnapshotCache(int maxSnapshots) {
+        this.maxSnapshots = maxSnapshots;
+        this.epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+    }
+
+    public String etag(long version) {
+        return "\"" + epoch + "-" + version + "\"";
+    }
+
+    public boolean matches(String ifNoneMatch, String etag) {
+        // If-None-Match can hold several tags separated by commas
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            // Compressed responses carry the weak form of the tag
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                notModified.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Snapshot get(String channel, long version) {
+        Snapshot snapshot = snapshots.get(channel);
+        if (snapshot != null && snapshot.version == version) {
+            hits.increment();
+            return snapshot;
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(String channel, Snapshot snapshot) {
+        if (maxSnapshots <= 0) {
+            return;
+        }
+        if (snapshots.size() >= maxSnapshots && !snapshots.containsKey(channel)) {
+            Iterator<String> it = snapshots.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        // Don't let a slow request replace a newer snapshot with an older one
+        snapshots.merge(channel, snapshot, (old, added) -> added.version >= old.version ? added : old);
+    }
+
+    public String getStats() {
+        return "response-cache: snapshots=" + snapshots.size() + "/" + maxSnapshots
+                + ", hits=" + hits.sum()
+                + ", misses=" + misses.sum()
+                + ", notModified=" + notModified.sum();
+    }
+}
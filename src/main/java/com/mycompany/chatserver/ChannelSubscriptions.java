@@ -0,0 +1,80 @@
+package com.mycompany.chatserver;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChannelSubscriptions implements MessageListener {
+
+    // Registry of clients subscribed to channels. Committed changes are fanned out
+    // from memory to every subscriber of the channel without querying the database.
+    private final ConcurrentHashMap<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final int maxSubscribers;
+    private final LongAdder dropped = new LongAdder();
+
+    public interface Subscriber {
+
+        // Must not block. Returns false when the subscriber's buffer is full.
+        boolean deliver(ChannelEvent event);
+
+        // Called after a subscriber was removed because it could not keep up
+        void disconnect();
+    }
+
+    public ChannelSubscriptions(int maxSubscribers) {
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    public boolean subscribe(String channel, Subscriber subscriber) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return false;
+        }
+        subscribers.compute(channel, (c, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(subscriber);
+            return set;
+        });
+        return true;
+    }
+
+    public void unsubscribe(String channel, Subscriber subscriber) {
+        boolean[] removed = new boolean[1];
+        subscribers.computeIfPresent(channel, (c, set) -> {
+            removed[0] = set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            subscriberCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void messageChanged(ChatMessage message) {
+        Set<Subscriber> channelSubscribers = subscribers.get(message.channel);
+        if (channelSubscribers == null) {
+            return;
+        }
+        ChannelEvent event = new ChannelEvent(message);
+        for (Subscriber subscriber : channelSubscribers) {
+            if (!subscriber.deliver(event)) {
+                // Slow consumer, drop it instead of buffering without limit
+                unsubscribe(message.channel, subscriber);
+                dropped.increment();
+                subscriber.disconnect();
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
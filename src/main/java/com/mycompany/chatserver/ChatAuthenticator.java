@@ -12,9 +12,19 @@ public class ChatAuthenticator extends com.sun.net.httpserver.BasicAuthenticator
     public boolean checkCredentials(String username, String password) {
 
         ChatDatabase db = ChatDatabase.getInstance();
-        
+        CredentialCache cache = db.getCredentialCache();
+
+        //Skip the password hash if these credentials were verified recently
+        if (cache.isVerified(username, password)) {
+            return true;
+        }
+
         try {
-            return db.authenticateUser(username, password);
+            long stamp = cache.stamp();
+            if (db.authenticateUser(username, password)) {
+                cache.put(username, password, stamp);
+                return true;
+            }
         } catch (SQLException ex) {
         }
         return false;
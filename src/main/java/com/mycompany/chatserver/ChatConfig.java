@@ -0,0 +1,49 @@
+package com.mycompany.chatserver;
+
+public class ChatConfig {
+
+    // Tunable server settings are read from system properties with this prefix,
+    // for example: java -Dchatserver.db.poolSize=16 -jar my-server-jar.jar ...
+    private static final String PREFIX = "chatserver.";
+
+    private ChatConfig() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + PREFIX + key + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + PREFIX + key + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
@@ -1,8 +1,6 @@
 package com.mycompany.chatserver;
 
 import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -13,24 +11,130 @@ import java.security.SecureRandom;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 import org.apache.commons.codec.digest.Crypt;
+import org.sqlite.SQLiteConfig;
 
 public class ChatDatabase {
 
-    private static ChatDatabase singleton = null;
+    private static final String SQL_COUNT_USERNAME = "SELECT COUNT(Users.username) AS COUNT FROM Users WHERE Users.username = ?";
+    private static final String SQL_INSERT_USER = "INSERT INTO Users(role, username, nickname, password, email, salt) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SQL_SELECT_CREDENTIALS = "SELECT Users.username, Users.password FROM Users WHERE username = ?";
+    private static final String SQL_DELETE_USER = "DELETE FROM Users WHERE username = ?";
+    private static final String SQL_UPDATE_USER = "UPDATE Users SET username = ? , email = ?, role = ?, nickname = ? WHERE username = ?";
+    private static final String SQL_UPDATE_PASSWORD = "UPDATE Users SET password = ? WHERE username = ?";
+    private static final String SQL_SELECT_USER_DETAILS = "SELECT Users.email, Users.nickname FROM Users WHERE username = ?";
+    private static final String SQL_INSERT_MESSAGE = "INSERT INTO Messages(channel, message, timestamp, username, tag) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_SELECT_NEWEST = "SELECT Messages.id, Messages.message, Messages.timestamp, Messages.username, Messages.tag"
+            + " FROM Messages WHERE channel = ? ORDER BY timestamp DESC LIMIT ?";
+    private static final String SQL_SELECT_SINCE = "SELECT Messages.id, Messages.message, Messages.timestamp, Messages.username, Messages.tag "
+            + "FROM Messages WHERE channel = ? AND Messages.timestamp > ? ORDER BY timestamp, id LIMIT ?";
+    private static final String SQL_SELECT_AFTER_ID = "SELECT Messages.id, Messages.message, Messages.timestamp, Messages.username, Messages.tag "
+            + "FROM Messages WHERE channel = ? AND Messages.id > ? ORDER BY id LIMIT ?";
+    private static final String SQL_SELECT_BEFORE_ID = "SELECT Messages.id, Messages.message, Messages.timestamp, Messages.username, Messages.tag "
+            + "FROM Messages WHERE channel = ? AND Messages.id < ? ORDER BY id DESC LIMIT ?";
+    private static final String SQL_SELECT_MESSAGE = "SELECT Messages.id, Messages.channel, Messages.message, Messages.timestamp, Messages.username, Messages.tag "
+            + "FROM Messages WHERE id = ?";
+    private static final String SQL_DELETE_MESSAGE = "Update Messages SET message = ?, tag = ?, timestamp = ? WHERE id = ? AND username = ?";
+    private static final String SQL_EDIT_MESSAGE = "Update Messages SET message = ?, tag = ?, timestamp = ? WHERE id = ? AND username = ? AND tag IS NOT ?";
+    private static final String SQL_LIST_CHANNELS = "SELECT DISTINCT channel FROM messages";
+    private static final String SQL_SELECT_ROLE = "SELECT Users.role FROM Users WHERE username = ?";
+    private static final String SQL_SEARCH = "SELECT Messages.id, Messages.message, Messages.timestamp, Messages.username, Messages.tag "
+            + "FROM MessagesSearch JOIN Messages ON Messages.id = MessagesSearch.rowid "
+            + "WHERE MessagesSearch MATCH ? AND Messages.channel = ? AND Messages.tag IS NOT '<deleted>' "
+            + "AND (? IS NULL OR Messages.username = ?) AND Messages.timestamp >= ? AND Messages.timestamp < ? "
+            + "ORDER BY MessagesSearch.rank, Messages.id DESC LIMIT ? OFFSET ?";
+
+    private static final LatencyHistogram HASH_TIME = Metrics.histogram("chat_password_hash_duration_seconds",
+            "Time to hash a password with Crypt.crypt", "");
+    private static final LatencyHistogram HASH_WAIT = Metrics.histogram("chat_password_hash_wait_seconds",
+            "Time waiting for a free password hashing slot", "");
+
+    // Most messages returned for one If-Modified-Since request
+    private static final int MAX_RESULTS = ChatConfig.getInt("chat.maxResults", 1000);
+
     private String databaseName = "";
     private final SecureRandom secureRandom;
+    // Pools of the main database file, which keeps the users and the messages of shard 0
+    private ConnectionPool readPool;
+    private ConnectionPool writePool;
+    private ScheduledExecutorService checkpointer;
+    private final CredentialCache credentialCache;
+    private final Semaphore hashPermits;
+    private final int maxConcurrentHashes;
+    private final RecentMessageCache recentMessages;
+    private final ConcurrentHashMap<String, Long> channelVersions = new ConcurrentHashMap<>();
+    private final AtomicLong changeCount = new AtomicLong();
+    private volatile long openedVersion = 0;
+    private final List<MessageListener> messageListeners = new CopyOnWriteArrayList<>();
+    private volatile MessageShard[] shards = new MessageShard[0];
 
     private ChatDatabase() {
         secureRandom = new SecureRandom();
+        maxConcurrentHashes = ChatConfig.getInt("auth.maxConcurrentHashes", Runtime.getRuntime().availableProcessors());
+        hashPermits = new Semaphore(maxConcurrentHashes);
+        credentialCache = new CredentialCache(
+                ChatConfig.getInt("auth.cacheSize", 10000),
+                ChatConfig.getLong("auth.cacheTtlSeconds", 300) * 1000);
+        recentMessages = new RecentMessageCache(
+                ChatConfig.getInt("cache.channelMessages", 500),
+                ChatConfig.getInt("cache.maxMessages", 100000));
+        registerGauges();
     }
 
-    public static synchronized ChatDatabase getInstance() {
-        //Function is synchronized to prevent creating multiple instances of the same object
-        if (null == singleton) {
-            singleton = new ChatDatabase();
+    private void registerGauges() {
+        // Read when metrics are exported, the shards are replaced by open(). Values are
+        // summed over all shards.
+        for (String pool : new String[]{"read", "write"}) {
+            String labels = "pool=\"" + pool + "\"";
+            Metrics.gauge("chat_db_pool_active_connections", "Database connections in use", labels,
+                    () -> sumPools(pool, ConnectionPool::getActiveCount));
+            Metrics.gauge("chat_db_pool_idle_connections", "Open database connections not in use", labels,
+                    () -> sumPools(pool, ConnectionPool::getIdleCount));
+            Metrics.gauge("chat_db_pool_max_connections", "Maximum database connections", labels,
+                    () -> sumPools(pool, ConnectionPool::getMaxSize));
         }
-        return singleton;
+        Metrics.gauge("chat_db_write_queue_length", "Posted messages waiting to be written", "", () -> {
+            long length = 0;
+            for (MessageShard shard : shards) {
+                length += shard.writer.getQueueLength();
+            }
+            return length;
+        });
+        Metrics.gauge("chat_password_hash_active", "Password hashes being computed", "",
+                () -> maxConcurrentHashes - hashPermits.availablePermits());
+        Metrics.gauge("chat_credential_cache_entries", "Verified logins kept in memory", "", credentialCache::getSize);
+    }
+
+    private long sumPools(String name, ToLongFunction<ConnectionPool> value) {
+        long sum = 0;
+        for (MessageShard shard : shards) {
+            sum += value.applyAsLong(name.equals("read") ? shard.readPool : shard.writePool);
+        }
+        return sum;
+    }
+
+    private static class Holder {
+
+        // Created on first use, class initialization guarantees a single instance without
+        // taking a lock on every call
+        static final ChatDatabase INSTANCE = new ChatDatabase();
+    }
+
+    public static ChatDatabase getInstance() {
+        return Holder.INSTANCE;
     }
 
     public void open(String dbName) throws SQLException {
@@ -41,31 +145,213 @@ public class ChatDatabase {
 
         databaseName = dbName;
 
+        close();
+        recentMessages.clear();
+        channelVersions.clear();
+        openedVersion = changeCount.incrementAndGet();
+
+        // All mutations go through a single writer connection, reads use a pool of
+        // read-only connections. In WAL mode readers never block on the writer.
+        int cacheSizeKib = ChatConfig.getInt("db.cacheSizeKib", 8192);
+        long mmapSize = ChatConfig.getLong("db.mmapSize", 268435456L);
+        List<String> readerPragmas = List.of(
+                "PRAGMA cache_size = " + (-cacheSizeKib),
+                "PRAGMA mmap_size = " + mmapSize);
+        List<String> writerPragmas = List.of(
+                "PRAGMA journal_mode = " + pragmaWord(ChatConfig.getString("db.journalMode", "WAL")),
+                "PRAGMA synchronous = " + pragmaWord(ChatConfig.getString("db.synchronous", "FULL")),
+                "PRAGMA cache_size = " + (-cacheSizeKib),
+                "PRAGMA mmap_size = " + mmapSize,
+                "PRAGMA wal_autocheckpoint = " + ChatConfig.getInt("db.walAutocheckpointPages", 1000),
+                "PRAGMA journal_size_limit = " + ChatConfig.getLong("db.journalSizeLimit", 67108864L));
+
+        SQLiteConfig readOnly = new SQLiteConfig();
+        readOnly.setReadOnly(true);
+
+        long timeout = ChatConfig.getLong("db.poolTimeoutMillis", 5000);
+        long leakDetection = ChatConfig.getLong("db.leakDetectionMillis", 0);
+        int statementCacheSize = ChatConfig.getInt("db.statementCacheSize", 32);
+
+        // Channels are hashed onto this many database files, each with its own writer and
+        // readers, so posts to different shards are committed in parallel
+        int shardCount = Math.max(1, ChatConfig.getInt("db.shards", 1));
+        MessageShard[] opened = new MessageShard[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                String suffix = i == 0 ? "" : "-" + i;
+                String url = MessageShard.fileUrl(databaseName, i);
+
+                ConnectionPool writer = new ConnectionPool("db-writer" + suffix, url, new Properties(), writerPragmas,
+                        1, timeout, leakDetection, statementCacheSize);
+
+                // Bring new and existing database files up to the current schema
+                try (PooledConnection c = writer.borrow()) {
+                    MessageShard.prepare(c.getConnection(), i, shardCount);
+                } catch (SQLException e) {
+                    writer.close();
+                    throw e;
+                }
+
+                ConnectionPool readers = new ConnectionPool("db-readers" + suffix, url, readOnly.toProperties(), readerPragmas,
+                        ChatConfig.getInt("db.poolSize", 8), timeout, leakDetection, statementCacheSize);
+
+                MessageWriter messageWriter = new MessageWriter(this, "message-writer" + suffix,
+                        ChatConfig.getInt("db.ingestQueueSize", 10000),
+                        ChatConfig.getInt("db.batchSize", 256),
+                        ChatConfig.getLong("db.batchLingerMillis", 2));
+                messageWriter.start();
+                opened[i] = new MessageShard(i, url, writer, readers, messageWriter);
+            }
+        } catch (SQLException e) {
+            for (MessageShard shard : opened) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            throw e;
+        }
         if (exists == false) {
-            initializeDatabase();
-        } else {
-            System.out.println("Connected to database.");
+            System.out.println("Database created.");
+        }
+        System.out.println(shardCount == 1 ? "Connected to database." : "Connected to database with " + shardCount + " shards.");
+
+        writePool = opened[0].writePool;
+        readPool = opened[0].readPool;
+        shards = opened;
+
+        long checkpointInterval = ChatConfig.getLong("db.checkpointIntervalSeconds", 60);
+        if (checkpointInterval > 0) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "db-checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+            checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
         }
     }
 
-    private boolean initializeDatabase() throws SQLException {
-        //Create a new database if one does not yet exist
-        try (Connection db = DriverManager.getConnection(databaseName)) {
+    private static String pragmaWord(String value) {
+        // Pragma values are put into SQL as is, so only allow plain words
+        if (!value.matches("[A-Za-z]+")) {
+            throw new IllegalArgumentException("Invalid pragma value: " + value);
+        }
+        return value;
+    }
 
-            Statement s = db.createStatement();
-            
-            s.execute("CREATE TABLE IF NOT EXISTS Users(id INTEGER PRIMARY KEY AUTOINCREMENT, role TEXT, username TEXT UNIQUE, nickname TEXT, password TEXT, email TEXT, salt TEXT)");
-            s.execute("CREATE TABLE IF NOT EXISTS Messages(id INTEGER PRIMARY KEY AUTOINCREMENT, channel TEXT, tag TEXT, message TEXT, timestamp INTEGER, username REFERENCES Users)");
+    public void checkpoint() {
+        long start = System.nanoTime();
+        try {
+            // Copy the WAL back into the database file and truncate it, keeps the log bounded
+            // even when automatic checkpoints can't finish because of concurrent readers
+            for (MessageShard shard : shards) {
+                try (PooledConnection c = shard.writePool.borrow();
+                        Statement s = c.getConnection().createStatement();
+                        ResultSet r = s.executeQuery("PRAGMA wal_checkpoint(TRUNCATE)")) {
+                    if (r.next() && r.getInt(1) != 0) {
+                        System.out.println("WAL checkpoint could not complete, readers still active.");
+                    }
+                } catch (SQLException e) {
+                    System.out.println("Error running WAL checkpoint.");
+                }
+            }
+        } finally {
+            Metrics.recordDatabaseCall("checkpoint", start);
+        }
+    }
 
-            System.out.println("Database created.");
-            System.out.println("Connected to database.");
+    public void close() {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+            checkpointer = null;
+        }
+        // Writers are stopped while the shards are still set, their last batches are
+        // routed to a shard like any other insert
+        MessageShard[] open = shards;
+        for (MessageShard shard : open) {
+            shard.writer.stop();
+        }
+        shards = new MessageShard[0];
+        for (MessageShard shard : open) {
+            shard.closePools();
+        }
+        readPool = null;
+        writePool = null;
+    }
 
-            s.close();
-            return true;
-        } catch (SQLException e) {
-            System.out.println("Error creating new database.");
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    public String getStats() {
+        if (writePool == null) {
+            return "Database not open";
+        }
+        StringBuilder stats = new StringBuilder();
+        for (MessageShard shard : shards) {
+            stats.append(shard.getStats()).append('\n');
+        }
+        return stats + credentialCache.getStats() + "\n" + recentMessages.getStats();
+    }
+
+    private MessageShard shardFor(String channel) {
+        MessageShard[] open = shards;
+        if (open.length == 0) {
+            throw new IllegalStateException("Database not open");
+        }
+        return open[MessageShard.shardOf(channel, open.length)];
+    }
+
+    private MessageShard shardForId(long messageID) {
+        // Null for an id outside every shard, which can't be an existing message
+        MessageShard[] open = shards;
+        int index = MessageShard.shardOfId(messageID);
+        return index < open.length ? open[index] : null;
+    }
+
+    public void addMessageListener(MessageListener listener) {
+        messageListeners.add(listener);
+    }
+
+    private void fireMessageChanged(ChatMessage message) {
+        for (MessageListener listener : messageListeners) {
+            try {
+                listener.messageChanged(message);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void messageCommitted(ChatMessage message) {
+        // Called by the writer after each committed change. The version moves after the
+        // change is readable, so anything read under an older version is never newer.
+        recentMessages.messageChanged(message);
+        channelVersions.put(message.channel, changeCount.incrementAndGet());
+    }
+
+    public long getChannelVersion(String channel) {
+        // Changes whenever a message of the channel is added, edited or deleted
+        return channelVersions.getOrDefault(channel, openedVersion);
+    }
+
+    private void invalidateUser(String username) {
+        // Called after a user's password, details or account change
+        credentialCache.invalidate(username);
+    }
+
+    private String crypt(String password, String salt) {
+        // Hashing is CPU bound, running more at once than there are cores only makes every
+        // request slower and can occupy all carrier threads when requests run on virtual threads
+        long waitStart = System.nanoTime();
+        hashPermits.acquireUninterruptibly();
+        long start = System.nanoTime();
+        HASH_WAIT.record(start - waitStart);
+        try {
+            return Crypt.crypt(password, salt);
+        } finally {
+            hashPermits.release();
+            HASH_TIME.recordSince(start);
         }
-        return false;
     }
 
     private String getHashedPasswordWithSalt(String password) {
@@ -73,362 +359,630 @@ public class ChatDatabase {
         byte[] bytes = new byte[13];
         secureRandom.nextBytes(bytes);
 
-        //Conver salt bytes to a string
-        String saltBytes = new String(Base64.getEncoder().encode(bytes));
+        //Conver salt bytes to a string, crypt only accepts [a-zA-Z0-9./] in the salt
+        String saltBytes = new String(Base64.getEncoder().withoutPadding().encode(bytes)).replace('+', '.');
         String salt = "$6$" + saltBytes;
 
         //Hash password with salt
-        String hashedPassword = Crypt.crypt(password, salt);
+        String hashedPassword = crypt(password, salt);
 
         return hashedPassword + " " + salt;
     }
 
     public boolean addUser(String role, String username, String password, String email) throws SQLException {
+        long start = System.nanoTime();
+        try {
+
+            // Hash password with salt
+            String split[] = getHashedPasswordWithSalt(password).split(" ");
+            String hashedPassword = split[0];
+            String salt = split[1];
+
+            try (PooledConnection c = writePool.borrow()) {
+
+                //Get count of users with the same username in database, should be 0
+                PreparedStatement p = c.prepare(SQL_COUNT_USERNAME);
+                p.setString(1, username);
+
+                //Add user to database if username is available
+                try {
+                    int count;
+                    try (ResultSet r = p.executeQuery()) {
+                        count = r.getInt("COUNT");
+                    }
+                    if (count == 0) {
+
+                        PreparedStatement p2 = c.prepare(SQL_INSERT_USER);
+
+                        p2.setString(1, role);
+                        p2.setString(2, username);
+                        p2.setString(3, username);
+                        p2.setString(4, hashedPassword);
+                        p2.setString(5, email);
+                        p2.setString(6, salt);
+
+                        p2.execute();
+                        System.out.println("Added user " + username + " with role " + role + " to database.");
+                        return true;
+
+                    } else {
+                        System.out.println("Username already exists.");
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    System.out.println("Error when adding user credentials to database.");
+                }
 
-        // Hash password with salt
-        String split[] = getHashedPasswordWithSalt(password).split(" ");
-        String hashedPassword = split[0];
-        String salt = split[1];
-
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
+            } catch (SQLException e) {
+                System.out.println("Could not connect to database.");
+            }
+            return false;
+        } finally {
+            Metrics.recordDatabaseCall("addUser", start);
+        }
+    }
 
-            s = db.createStatement();
+    public boolean authenticateUser(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            String hashedPassword = null;
+            try (PooledConnection c = readPool.borrow()) {
 
-            //Get count of users with the same username in database, should be 0
-            PreparedStatement p = db.prepareStatement("SELECT COUNT(Users.username) AS COUNT FROM Users WHERE Users.username = ?");
-            p.setString(1, username);
+                //Get user info matching given username and password
+                PreparedStatement p = c.prepare(SQL_SELECT_CREDENTIALS);
 
-            ResultSet r = p.executeQuery();
+                p.setString(1, username);
 
-            //Add user to database if username is available
-            try {
-                if (r.getInt("COUNT") == 0) {
-                    
-                    PreparedStatement p2 = db.prepareStatement("INSERT INTO Users(role, username, nickname, password, email, salt) VALUES (?, ?, ?, ?, ?, ?)");
-                    
-                    p2.setString(1, role);
-                    p2.setString(2, username);
-                    p2.setString(3, username);
-                    p2.setString(4, hashedPassword);
-                    p2.setString(5, email);
-                    p2.setString(6, salt);
-                    
-                    p2.execute();
-                    //s.execute("INSERT INTO Users(role, username,  password, email, salt) VALUES ('" + role + "', '" + username + "', '" + hashedPassword + "','" + email + "','" + salt + "')");
-                    System.out.println("Added user " + username + " with role " + role + " to database.");
-                    return true;
-
-                } else {
-                    System.out.println("Username already exists.");
+                try (ResultSet r = p.executeQuery()) {
+                    if (r.next() && r.getString("username").equals(username)) {
+                        hashedPassword = r.getString("password");
+                    }
                 }
             } catch (SQLException e) {
-                e.printStackTrace();
-                System.out.println("Error when adding user credentials to database.");
+                System.out.println("Could not connect to database");
+                return false;
             }
-            s.close();
 
-        } catch (SQLException e) {
-            System.out.println("Could not connect to database.");
+            if (hashedPassword == null) {
+                System.out.println("Invalid user credentials");
+                return false;
+            }
+            //Check if hashed password in database matches new hashed password with salt
+            //Connection is returned to the pool before hashing so it isn't held during the slow crypt
+            if (hashedPassword.equals(crypt(password, hashedPassword))) {
+                return true;
+            } else {
+                System.out.println("Wrong username or password");
+                return false;
+            }
+        } finally {
+            Metrics.recordDatabaseCall("authenticateUser", start);
         }
-        return false;
     }
 
-    public boolean authenticateUser(String username, String password) throws SQLException {
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
+    public void adminDeleteUser(String username) {
+        long start = System.nanoTime();
+        try {
+            try (PooledConnection c = writePool.borrow()) {
 
-            s = db.createStatement();
+                PreparedStatement p = c.prepare(SQL_DELETE_USER);
 
-            //Get user info matching given username and password
-            PreparedStatement p = db.prepareStatement("SELECT Users.username, Users.password FROM Users WHERE username = ?");
+                p.setString(1, username);
 
-            p.setString(1, username);
+                int result = p.executeUpdate();
+                invalidateUser(username);
+                SessionManager.getInstance().revokeUser(username);
 
-            ResultSet r = p.executeQuery();
+                if (result != 0) {
+                    System.out.println("User " + username + " deleted.");
+                } else {
+                    System.out.println("Can't delete user: username not found");
+                }
+            } catch (SQLException e) {
+                System.out.println("Could not connect to database.");
+            }
+        } finally {
+            Metrics.recordDatabaseCall("adminDeleteUser", start);
+        }
+    }
 
-            if (r.next()) {
-                String hashedPassword = r.getString("password");
-                //Check if username and password match
-                //Check if hashed password in database matches new hashed password with salt
-                if (r.getString("username").equals(username) && hashedPassword.equals(Crypt.crypt(password, hashedPassword))) {
+    public boolean editUserDetails(String user, String username, String email, String role, String nickname) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            // Edit user's info by giving the current username and updated info
+            try (PooledConnection c = writePool.borrow()) {
+
+                PreparedStatement p = c.prepare(SQL_UPDATE_USER);
+
+                p.setString(1, username);
+                p.setString(2, email);
+                p.setString(3, role);
+                p.setString(4, nickname);
+                p.setString(5, user);
+
+                int num = p.executeUpdate();
+                invalidateUser(user);
+                invalidateUser(username);
+                if (!user.equals(username)) {
+                    //Sessions belong to the old username
+                    SessionManager.getInstance().revokeUser(user);
+                }
+                if (num != 0) {
+                    System.out.println("User " + user + " edited.");
                     return true;
                 } else {
-                    System.out.println("Wrong username or password");
+                    System.out.println("Error updating user data: could not find user");
                     return false;
                 }
-            } else {
-                System.out.println("Invalid user credentials");
             }
-            s.close();
-        } catch (SQLException e) {
-            System.out.println("Could not connect to database");
+        } finally {
+            Metrics.recordDatabaseCall("editUserDetails", start);
         }
-        return false;
     }
 
-    public void adminDeleteUser(String username) {
-        Statement s;
+    public boolean editUserPassword(String username, String newPassword) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            // Hash new password with salt
+            String split[] = getHashedPasswordWithSalt(newPassword).split(" ");
+            String hashedPassword = split[0];
 
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
+            try (PooledConnection c = writePool.borrow()) {
 
-            PreparedStatement p = db.prepareStatement("DELETE FROM Users WHERE username = ?");
+                PreparedStatement p = c.prepare(SQL_UPDATE_PASSWORD);
 
-            p.setString(1, username);
+                p.setString(1, hashedPassword);
+                p.setString(2, username);
 
-            int result = p.executeUpdate();
-
-            if (result != 0) {
-                System.out.println("User " + username + " deleted.");
-            } else {
-                System.out.println("Can't delete user: username not found");
+                int num = p.executeUpdate();
+                invalidateUser(username);
+                SessionManager.getInstance().revokeUser(username);
+                if (num != 0) {
+                    System.out.println(username + " password changed.");
+                    return true;
+                } else {
+                    System.out.println("Error updating user data: could not find user");
+                    return false;
+                }
             }
-            s.close();
-        } catch (SQLException e) {
-            System.out.println("Could not connect to database.");
+        } finally {
+            Metrics.recordDatabaseCall("editUserPassword", start);
         }
     }
-    
-    public boolean editUserDetails(String user, String username, String email, String role, String nickname) throws SQLException {
-        // Edit user's info by giving the current username and updated info
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
-
-            PreparedStatement p = db.prepareStatement("UPDATE Users SET username = ? , email = ?, role = ?, nickname = ? WHERE username = ?");
 
+    public boolean isAdmin(String username) throws SQLException {
+        long start = System.nanoTime();
+        try (PooledConnection c = readPool.borrow()) {
+            PreparedStatement p = c.prepare(SQL_SELECT_ROLE);
             p.setString(1, username);
-            p.setString(2, email);
-            p.setString(3, role);
-            p.setString(4, nickname);
-            p.setString(5, user);
-
-            int num = p.executeUpdate();
-            s.close();
-            if (num != 0) {
-                System.out.println("User " + user + " edited.");
-                return true;
-            } else {
-                System.out.println("Error updating user data: could not find user");
-                return false;
+
+            try (ResultSet r = p.executeQuery()) {
+                return r.next() && "admin".equals(r.getString("role"));
             }
+        } finally {
+            Metrics.recordDatabaseCall("isAdmin", start);
         }
     }
 
-    public boolean editUserPassword(String username, String newPassword) throws SQLException {
-        // Hash new password with salt
-        String split[] = getHashedPasswordWithSalt(newPassword).split(" ");
-        String hashedPassword = split[0];
-
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
+    public ArrayList getUserDetails(String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ArrayList<String> userDetails = new ArrayList<>();
+            try (PooledConnection c = readPool.borrow()) {
+
+                PreparedStatement p = c.prepare(SQL_SELECT_USER_DETAILS);
+                p.setString(1, username);
+
+                try (ResultSet r = p.executeQuery()) {
+                    String email = "";
+                    String nickname = "";
+
+                    if (r.next()) {
+                        email = r.getString("email");
+                        nickname = r.getString("nickname");
+                        userDetails.add(email);
+                        userDetails.add(nickname);
+                    } else {
+                        System.out.println("wtf");
+                    }
+                }
+                return userDetails;
+            }
+        } finally {
+            Metrics.recordDatabaseCall("getUserDetails", start);
+        }
+    }
 
-            PreparedStatement p = db.prepareStatement("UPDATE Users SET password = ? WHERE username = ?");
+    public CompletableFuture<Void> submitMessage(ChatMessage message) {
+        // Queue message for the writer thread, future completes once the batch is committed
+        return shardFor(message.channel).writer.submit(message);
+    }
 
-            p.setString(1, hashedPassword);
-            p.setString(2, username);
+    public void insertMessage(ChatMessage message) {
+        try {
+            insertMessages(List.of(message));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Error inserting message into database.");
+        }
+    }
 
-            int num = p.executeUpdate();
-            s.close();
-            if (num != 0) {
-                System.out.println(username + " password changed.");
-                return true;
-            } else {
-                System.out.println("Error updating user data: could not find user");
-                return false;
-            }
+    public void insertMessages(List<ChatMessage> messages) throws SQLException {
+        // One transaction per shard the messages belong to
+        MessageShard[] open = shards;
+        if (open.length == 1) {
+            insertMessages(open[0], messages);
+            return;
+        }
+        Map<MessageShard, List<ChatMessage>> byShard = new LinkedHashMap<>();
+        for (ChatMessage message : messages) {
+            byShard.computeIfAbsent(shardFor(message.channel), k -> new ArrayList<>()).add(message);
+        }
+        for (Map.Entry<MessageShard, List<ChatMessage>> entry : byShard.entrySet()) {
+            insertMessages(entry.getKey(), entry.getValue());
         }
     }
-    
-    public ArrayList getUserDetails(String username) throws SQLException {
-        ArrayList<String> userDetails = new ArrayList<>();
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
 
-            PreparedStatement p = db.prepareStatement("SELECT Users.email, Users.nickname FROM Users WHERE username = ?");
-            p.setString(1, username);
-            
-            ResultSet r = p.executeQuery();
-            String email = "";
-            String nickname = "";
-            
-            if (r.next()) {
-                email = r.getString("email");
-                nickname = r.getString("nickname");
-                userDetails.add(email);
-                userDetails.add(nickname);
-            } else {
-                System.out.println("wtf");
+    private void insertMessages(MessageShard shard, List<ChatMessage> messages) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            // Insert all messages in a single transaction
+            String tag = "";
+
+            try (PooledConnection c = shard.writePool.borrow()) {
+                c.getConnection().setAutoCommit(false);
+
+                PreparedStatement p = c.prepare(SQL_INSERT_MESSAGE);
+
+                for (ChatMessage message : messages) {
+                    long time = message.sent.toInstant(ZoneOffset.UTC).toEpochMilli();
+
+                    p.setString(1, message.channel);
+                    p.setString(2, message.message);
+                    p.setLong(3, time);
+                    p.setString(4, message.userName);
+                    p.setString(5, tag);
+                    p.executeUpdate();
+
+                    try (ResultSet keys = p.getGeneratedKeys()) {
+                        if (keys.next()) {
+                            message.id = keys.getLong(1);
+                        }
+                    }
+                    message.tag = tag;
+                }
+                c.getConnection().commit();
+                c.getConnection().setAutoCommit(true);
+
+                // Updated while still holding the writer so the cache sees changes in commit order
+                for (ChatMessage message : messages) {
+                    messageCommitted(message);
+                }
+                System.out.println(messages.size() == 1 ? "Message inserted" : messages.size() + " messages inserted");
             }
-            return userDetails;
+            for (ChatMessage message : messages) {
+                fireMessageChanged(message);
+            }
+        } finally {
+            Metrics.recordDatabaseCall("insertMessages", start);
         }
     }
 
-    public void insertMessage(ChatMessage message) {
-        Statement s;
-
-        long time = message.sent.toInstant(ZoneOffset.UTC).toEpochMilli();
-        String user = message.userName;
-        String msg = message.message;
-        String channel = message.channel;
-        String tag = "";
+    private ChatMessage readMessage(ResultSet r, String channel) throws SQLException {
+        long timestamp = r.getLong("timestamp");
+        //Convert long to LocalDateTime
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC);
 
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
+        ChatMessage message = new ChatMessage(channel, time, r.getString("username"), r.getString("message"), r.getString("tag"));
+        message.id = r.getLong("id");
+        return message;
+    }
 
-            String msgBody = "INSERT INTO Messages(channel, message, timestamp, username, tag) VALUES (?, ?, ?, ?, ?)";
-            PreparedStatement p = db.prepareStatement(msgBody);
+    private ChatMessage selectMessage(PooledConnection c, long messageID) throws SQLException {
+        PreparedStatement p = c.prepare(SQL_SELECT_MESSAGE);
+        p.setLong(1, messageID);
 
-            p.setString(1, channel);
-            p.setString(2, msg);
-            p.setLong(3, time);
-            p.setString(4, user);
-            p.setString(5, tag);
-
-            p.executeUpdate();
-            System.out.println("Message inserted");
-            s.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("Error inserting message into database.");
+        try (ResultSet r = p.executeQuery()) {
+            return r.next() ? readMessage(r, r.getString("channel")) : null;
         }
     }
 
     public ArrayList<ChatMessage> getMessages(String channel, long messagesSince) {
-        //Return all messages from database in a ArrayList
-        ArrayList<ChatMessage> messages = new ArrayList<>();
-        String msg;
-        Long timestamp;
-        String user;
-        String tag;
-
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
-
-            String query;
-            PreparedStatement p;
+        long start = System.nanoTime();
+        try {
+            //Return all messages from database in a ArrayList
+            //Recent messages are answered from memory when the cache covers the requested range
+            ArrayList<ChatMessage> cached;
+            if (messagesSince == -1) {
+                cached = recentMessages.getNewest(channel, 100, this::selectNewest);
+            } else {
+                cached = recentMessages.getSince(channel, messagesSince, this::selectNewest);
+            }
+            if (cached != null) {
+                return capResults(cached);
+            }
 
             if (messagesSince == -1) {
                 //Get 100 newest messages from db if no last-modified header is found
-                query = "SELECT Messages.message, Messages.timestamp, Messages.username, Messages.tag"
-                        + " FROM Messages WHERE channel = ? ORDER BY timestamp DESC LIMIT 100";
-                p = db.prepareStatement(query);
-                p.setString(1, channel);
-            } else {
+                ArrayList<ChatMessage> messages = selectNewest(channel, 100);
+                return messages != null ? messages : new ArrayList<>();
+            }
+
+            ArrayList<ChatMessage> messages = new ArrayList<>();
+            try (PooledConnection c = shardFor(channel).readPool.borrow()) {
+
                 //If last-modified header is found get all new messages
-                query = "SELECT Messages.message, Messages.timestamp, Messages.username, Messages.tag "
-                        + "FROM Messages WHERE channel = ? AND Messages.timestamp > ? ORDER BY timestamp";
-                p = db.prepareStatement(query);
+                PreparedStatement p = c.prepare(SQL_SELECT_SINCE);
                 p.setString(1, channel);
                 p.setLong(2, messagesSince);
+                p.setInt(3, MAX_RESULTS + 1);
+
+                try (ResultSet r = p.executeQuery()) {
+                    while (r.next()) {
+                        //Create ChatMessage object from row, and add it to arraylist
+                        messages.add(readMessage(r, channel));
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Could not connect to database.");
             }
+            return capResults(messages);
+        } finally {
+            Metrics.recordDatabaseCall("getMessages", start);
+        }
+    }
 
-            ResultSet r = p.executeQuery();
+    private static ArrayList<ChatMessage> capResults(ArrayList<ChatMessage> messages) {
+        // Oldest first, the client continues from the Last-Modified of this part with a strict
+        // timestamp >. Messages sharing the last timestamp are left out together, so none of
+        // them is skipped by the next request. A part that is one timestamp only can't be split.
+        if (messages.size() <= MAX_RESULTS) {
+            return messages;
+        }
+        LocalDateTime boundary = messages.get(MAX_RESULTS).sent;
+        int end = MAX_RESULTS;
+        while (end > 0 && messages.get(end - 1).sent.equals(boundary)) {
+            end--;
+        }
+        return new ArrayList<>(messages.subList(0, end > 0 ? end : MAX_RESULTS));
+    }
 
-            while (r.next()) {
+    private ArrayList<ChatMessage> selectNewest(String channel, int limit) {
+        //Newest messages of the channel first, or null if the database can't be read
+        ArrayList<ChatMessage> messages = new ArrayList<>();
 
-                msg = r.getString("message");
-                timestamp = r.getLong("timestamp");
-                user = r.getString("username");
-                tag = r.getString("tag");
-                //Convert long to LocalDateTime
-                LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC);
+        try (PooledConnection c = shardFor(channel).readPool.borrow()) {
+            PreparedStatement p = c.prepare(SQL_SELECT_NEWEST);
+            p.setString(1, channel);
+            p.setInt(2, limit);
 
-                //Create ChatMessage object from variables, and add it to arraylist
-                ChatMessage message = new ChatMessage(channel, time, user, msg, tag);
-                messages.add(message);
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next()) {
+                    messages.add(readMessage(r, channel));
+                }
             }
-            s.close();
         } catch (SQLException e) {
             System.out.println("Could not connect to database.");
+            return null;
         }
         return messages;
     }
 
-    public void deleteMessage(int messageID, String username) {
-        Statement s;
+    public ArrayList<ChatMessage> getMessagesAfterId(String channel, long afterId, int limit) {
+        long start = System.nanoTime();
+        try {
+            //Return messages posted to channel after the message with given id, oldest first
+            ArrayList<ChatMessage> messages = new ArrayList<>();
 
-        LocalDateTime time = LocalDateTime.now();
-        long timestamp = time.toInstant(ZoneOffset.UTC).toEpochMilli();
-        String tag = "<deleted>";
+            try (PooledConnection c = shardFor(channel).readPool.borrow()) {
+                PreparedStatement p = c.prepare(SQL_SELECT_AFTER_ID);
+                p.setString(1, channel);
+                p.setLong(2, afterId);
+                p.setInt(3, limit);
 
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
+                try (ResultSet r = p.executeQuery()) {
+                    while (r.next()) {
+                        messages.add(readMessage(r, channel));
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Could not connect to database.");
+            }
+            return messages;
+        } finally {
+            Metrics.recordDatabaseCall("getMessagesAfterId", start);
+        }
+    }
 
-            //String query = "DELETE FROM Messages WHERE id = ? AND username = ?)";
-            String query = "Update Messages SET message = ?, tag = ?, timestamp = ? WHERE id = ? AND username = ?";
-            PreparedStatement p = db.prepareStatement(query);
+    public ArrayList<ChatMessage> getMessagesBeforeId(String channel, long beforeId, int limit) {
+        long start = System.nanoTime();
+        try {
+            //Return messages posted to channel before the message with given id, newest first
+            ArrayList<ChatMessage> messages = new ArrayList<>();
 
-            p.setString(1, "");
-            p.setString(2, tag);
-            p.setLong(3, timestamp);
-            p.setInt(4, messageID);
-            p.setString(5, username);
+            try (PooledConnection c = shardFor(channel).readPool.borrow()) {
+                PreparedStatement p = c.prepare(SQL_SELECT_BEFORE_ID);
+                p.setString(1, channel);
+                p.setLong(2, beforeId);
+                p.setInt(3, limit);
 
-            int result = p.executeUpdate();
+                try (ResultSet r = p.executeQuery()) {
+                    while (r.next()) {
+                        messages.add(readMessage(r, channel));
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Could not connect to database.");
+            }
+            return messages;
+        } finally {
+            Metrics.recordDatabaseCall("getMessagesBeforeId", start);
+        }
+    }
 
-            if (result != 0) {
-                System.out.println("Message deleted.");
-            } else {
-                System.out.println("Could not delete message. Invalid message ID or username");
+    public ArrayList<ChatMessage> searchMessages(String channel, String query, String username, long from, long to, int limit, int offset) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            //Messages of the channel matching all words of the query, best matches first
+            ArrayList<ChatMessage> messages = new ArrayList<>();
+            String match = matchQuery(query);
+            if (match == null) {
+                return messages;
             }
-            s.close();
-        } catch (SQLException e) {
-            System.out.println("Could not connect to database.");
+
+            try (PooledConnection c = shardFor(channel).readPool.borrow()) {
+                PreparedStatement p = c.prepare(SQL_SEARCH);
+                p.setString(1, match);
+                p.setString(2, channel);
+                p.setString(3, username);
+                p.setString(4, username);
+                p.setLong(5, from);
+                p.setLong(6, to);
+                p.setInt(7, limit);
+                p.setInt(8, offset);
+
+                try (ResultSet r = p.executeQuery()) {
+                    while (r.next()) {
+                        messages.add(readMessage(r, channel));
+                    }
+                }
+            }
+            return messages;
+        } finally {
+            Metrics.recordDatabaseCall("searchMessages", start);
         }
     }
 
-    public void editMessage(int messageID, String username, String newMessage) throws SQLException {
+    private static String matchQuery(String query) {
+        // Every word is quoted, so user input is never read as FTS5 query syntax.
+        // A word ending in * matches as a prefix.
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            if (prefix) {
+                word = word.substring(0, word.length() - 1);
+            }
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(word.replace("\"", "\"\"")).append('"');
+            if (prefix) {
+                match.append('*');
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
 
-        LocalDateTime time = LocalDateTime.now();
-        long timestamp = time.toInstant(ZoneOffset.UTC).toEpochMilli();
-        String tag = "<edited>";
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
+    public void deleteMessage(long messageID, String username) {
+        long start = System.nanoTime();
+        try {
+            LocalDateTime time = LocalDateTime.now();
+            long timestamp = time.toInstant(ZoneOffset.UTC).toEpochMilli();
+            String tag = "<deleted>";
 
-            s = db.createStatement();
-            // Edit message only if it doesn't have deleted tag
-            String query = "Update Messages SET message = ?, tag = ?, timestamp = ? WHERE id = ? AND username = ? AND tag IS NOT ?";
+            // The id tells which shard has the message
+            MessageShard shard = shardForId(messageID);
+            if (shard == null) {
+                System.out.println("Could not delete message. Invalid message ID or username");
+                return;
+            }
+            try (PooledConnection c = shard.writePool.borrow()) {
 
-            PreparedStatement p = db.prepareStatement(query);
+                PreparedStatement p = c.prepare(SQL_DELETE_MESSAGE);
 
-            p.setString(1, newMessage);
-            p.setString(2, tag);
-            p.setLong(3, timestamp);
-            p.setInt(4, messageID);
-            p.setString(5, username);
-            p.setString(6, "<deleted>");
+                p.setString(1, "");
+                p.setString(2, tag);
+                p.setLong(3, timestamp);
+                p.setLong(4, messageID);
+                p.setString(5, username);
 
-            int result = p.executeUpdate();
+                int result = p.executeUpdate();
 
-            if (result != 0) {
-                System.out.println("Message succesfully edited.");
-            } else {
-                System.out.println("Error editing message. Message does not exist. ");
+                if (result != 0) {
+                    System.out.println("Message deleted.");
+                    ChatMessage deleted = selectMessage(c, messageID);
+                    if (deleted != null) {
+                        messageCommitted(deleted);
+                        fireMessageChanged(deleted);
+                    }
+                } else {
+                    System.out.println("Could not delete message. Invalid message ID or username");
+                }
+            } catch (SQLException e) {
+                System.out.println("Could not connect to database.");
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            Metrics.recordDatabaseCall("deleteMessage", start);
         }
     }
 
-    public ArrayList listChannels() throws SQLException {
-        //Returns a list containing all different channels
-        ArrayList<String> channels = new ArrayList<>();
-        Statement s;
-        try (Connection db = DriverManager.getConnection(databaseName)) {
-            s = db.createStatement();
-            PreparedStatement p = db.prepareStatement("SELECT DISTINCT channel FROM messages");
+    public void editMessage(long messageID, String username, String newMessage) throws SQLException {
+        long start = System.nanoTime();
+        try {
 
-            ResultSet r = p.executeQuery();
+            LocalDateTime time = LocalDateTime.now();
+            long timestamp = time.toInstant(ZoneOffset.UTC).toEpochMilli();
+            String tag = "<edited>";
+            MessageShard shard = shardForId(messageID);
+            if (shard == null) {
+                System.out.println("Error editing message. Message does not exist. ");
+                return;
+            }
+            try (PooledConnection c = shard.writePool.borrow()) {
+
+                // Edit message only if it doesn't have deleted tag
+                PreparedStatement p = c.prepare(SQL_EDIT_MESSAGE);
+
+                p.setString(1, newMessage);
+                p.setString(2, tag);
+                p.setLong(3, timestamp);
+                p.setLong(4, messageID);
+                p.setString(5, username);
+                p.setString(6, "<deleted>");
+
+                int result = p.executeUpdate();
+
+                if (result != 0) {
+                    System.out.println("Message succesfully edited.");
+                    ChatMessage edited = selectMessage(c, messageID);
+                    if (edited != null) {
+                        messageCommitted(edited);
+                        fireMessageChanged(edited);
+                    }
+                } else {
+                    System.out.println("Error editing message. Message does not exist. ");
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            Metrics.recordDatabaseCall("editMessage", start);
+        }
+    }
 
-            while (r.next()) {
-                channels.add(r.getString("channel"));
+    public ArrayList<String> listChannels() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            //Returns a list containing all different channels
+            //Each channel is in one shard only, so the lists of the shards are joined as is
+            ArrayList<String> channels = new ArrayList<>();
+            for (MessageShard shard : shards) {
+                try (PooledConnection c = shard.readPool.borrow()) {
+                    PreparedStatement p = c.prepare(SQL_LIST_CHANNELS);
+
+                    try (ResultSet r = p.executeQuery()) {
+                        while (r.next()) {
+                            channels.add(r.getString("channel"));
+                        }
+                    }
+                }
             }
+            return channels;
+        } finally {
+            Metrics.recordDatabaseCall("listChannels", start);
         }
-        return channels;
     }
 }
@@ -1,477 +1,160 @@
 package com.mycompany.chatserver;
 
-import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.URI;
-import java.nio.charset.StandardCharsets;
-import java.sql.SQLException;
-import java.time.DateTimeException;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.stream.Collectors;
-import org.json.JSONArray;
-import org.json.JSONException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.json.JSONObject;
 
 public class ChatHandler implements HttpHandler {
 
-    private int responseCode = 0;
-    private String response = "";
+    // Routes requests to /chat by method and action. The handler itself keeps no per-request
+    // state, everything about a request lives in its RequestContext.
+    private final Map<String, Route> routes = new HashMap<>();
+    private final Set<String> routeNames = new HashSet<>();
+    private final List<Middleware> middleware = new CopyOnWriteArrayList<>();
+    private final GetMessagesRoute getMessages;
 
     public ChatHandler() {
+        getMessages = new GetMessagesRoute();
+
+        addRoute("GET", "getMessages", getMessages);
+        addRoute("GET", "listChannels", MessageRoutes::listChannels);
+        addRoute("GET", "search", MessageRoutes::searchMessages);
+        addRoute("POST", "postMessage", MessageRoutes::postMessage);
+        addRoute("POST", "getUserDetails", UserRoutes::getUserDetails);
+        addRoute("PUT", "editUser", UserRoutes::editUser);
+        addRoute("PUT", "editMessage", MessageRoutes::editMessage);
+        addRoute("PUT", "editPassword", UserRoutes::editPassword);
+        addRoute("DELETE", "remove", UserRoutes::removeUser);
+        addRoute("DELETE", "deletemessage", MessageRoutes::deleteMessage);
     }
 
-    @Override
-    public void handle(HttpExchange exchange) throws IOException {
-        // Handle different requests
-        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-            handlePostRequest(exchange);
-        } else if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
-            handleGetRequest(exchange);
-        } else if (exchange.getRequestMethod().equalsIgnoreCase("PUT")) {
-            handlePutRequest(exchange);
-        } else if (exchange.getRequestMethod().equalsIgnoreCase("DELETE")) {
-            handleDeleteRequest(exchange);
-        } else {
-            handleBadRequest();
-        }
-
-        if (responseCode < 200 || responseCode > 299) {
-
-            byte[] bytes = response.getBytes("UTF-8");
+    private void addRoute(String method, String action, Route route) {
+        routes.put(method + " " + action, route);
+        routeNames.add(action);
+    }
 
-            exchange.sendResponseHeaders(responseCode, bytes.length);
+    public boolean isRoute(String action) {
+        return routeNames.contains(action);
+    }
 
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes("UTF-8"));
-            os.flush();
-            os.close();
-            exchange.close();
-        }
+    public void addMiddleware(Middleware m) {
+        // Middleware runs in the order it was added, around every routed request
+        middleware.add(m);
     }
 
-    private void handlePostRequest(HttpExchange exchange) throws IOException {
-        // Handle POST request (client sent new chat message)
-        response = "";
-        responseCode = 200;
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        RequestContext context = new RequestContext(exchange);
         try {
-
-            Headers headers = exchange.getRequestHeaders();
-            int contentLength = 0;
-            String contentType = "";
-
-            if (headers.containsKey("Content-length")) {
-                contentLength = Integer.valueOf(headers.get("Content-Length").get(0));
-            } else {
-                response = "Content-length not defined";
-                responseCode = 411;
-            }
-
-            if (headers.containsKey("Content-Type")) {
-                contentType = headers.get("Content-Type").get(0);
-            } else {
-                response = "No Content-Type specified in request";
-                responseCode = 400;
-            }
-
-            if (contentType.equalsIgnoreCase("application/json")) {
-
-                InputStream stream = exchange.getRequestBody();
-
-                String text = new BufferedReader(new InputStreamReader(stream,
-                        StandardCharsets.UTF_8))
-                        .lines()
-                        .collect(Collectors.joining("\n"));
-
-                stream.close();
-
-                JSONObject jsonObj = new JSONObject(text);
-
-                // If json has action key with value getUserDetails, respond with details of the requested user (email and nickname)
-                if (jsonObj.has("action")) {
-                    if (jsonObj.getString("action").equals("getUserDetails")) {
-                        String username = jsonObj.getString("user");
-                        ChatDatabase db = ChatDatabase.getInstance();
-
-                        String response = db.getUserDetails(username).toString();
-                        byte[] bytes = response.getBytes("UTF-8");
-
-                        exchange.sendResponseHeaders(200, bytes.length);
-
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(bytes);
-
-                        os.flush();
-                        os.close();
-                    }
-                } else {
-                    String dateStr = jsonObj.getString("sent");
-                    OffsetDateTime odt = OffsetDateTime.parse(dateStr);
-
-                    LocalDateTime sent = odt.toLocalDateTime();
-                    String userName = jsonObj.get("user").toString();
-                    String message = jsonObj.getString("message");
-                    String channel = jsonObj.getString("channel");
-
-                    if (!text.isEmpty()) {
-                        //Add message to database
-                        ChatMessage newMessage = new ChatMessage(channel, sent, userName, message, "");
-                        ChatDatabase db = ChatDatabase.getInstance();
-                        db.insertMessage(newMessage);
-
-                        exchange.sendResponseHeaders(200, -1);
-                    } else {
-                        response = "Text was empty.";
-                        responseCode = 400;
-                    }
+            String action = resolveAction(context);
+            if (action != null) {
+                Route route = routes.get(context.getMethod() + " " + action);
+                if (route == null) {
+                    throw new RequestException(400, "Invalid action specified: " + action);
                 }
-
-            } else if (!contentType.isEmpty() && !contentType.equalsIgnoreCase("application/json")) {
-                response = "Content-Type must be application/json";
-                responseCode = 411;
+                context.setRouteName(action);
+                runChain(context, 0, route);
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            System.out.println("Invalid JSON-file");
-            responseCode = 400;
-            response = "Invalid JSON-file";
         } catch (Exception e) {
-            e.printStackTrace();
+            ErrorMapper.respond(context, e);
         }
-    }
-
-    private void handleGetRequest(HttpExchange exchange) {
-        // Handle GET request (client wants to see messages)
-        try {
-            URI requestURI = exchange.getRequestURI();
-            String channel = "main";
-            String action = null;
-
-            if (requestURI.getQuery() == null) {
-                String mainChannel = "https://localhost:8001/chat?channel=main";
-
-                exchange.getResponseHeaders().add("Location", mainChannel);
-                exchange.sendResponseHeaders(302, -1);
-            } else {
-                String query = requestURI.getQuery();
 
-                if (query != null) {
-
-                    String split[] = query.split("=");
-                    // Split query string, should be "channel" or "listChannels"
-                    String splitQuery = split[0];
-                    if (splitQuery.equals("channel")) {
-                        channel = split[1];
-                        action = "getMessages";
-                    } else if (splitQuery.equals("listChannels")) {
-                        action = "listChannels";
-                    }
-                } else {
-                    responseCode = 400;
-                    response = "Bad query";
-                }
+        if (!context.isDetached()) {
+            if (!context.isResponded()) {
+                ErrorMapper.respond(context, new IllegalStateException("No response from route " + context.getRouteName()));
             }
+            exchange.close();
+        }
+    }
 
-            ChatDatabase db = ChatDatabase.getInstance();
-            Headers headers = exchange.getRequestHeaders();
-            String lastModified = null;
-            String contentType = null;
-            LocalDateTime fromWhichDate = null;
-            long messagesSince = -1;
+    private void runChain(RequestContext context, int index, Route route) throws Exception {
+        if (index < middleware.size()) {
+            middleware.get(index).handle(context, c -> runChain(c, index + 1, route));
+        } else {
+            route.handle(context);
+        }
+    }
 
-            if (headers.containsKey("If-Modified-Since")) {
-                lastModified = headers.get("If-Modified-Since").get(0);
-                try {
-                    ZonedDateTime zd = ZonedDateTime.parse(lastModified);
-                    fromWhichDate = zd.toLocalDateTime();
-                    messagesSince = fromWhichDate.toInstant(ZoneOffset.UTC).toEpochMilli();
-                } catch (DateTimeException e) {
-                    System.out.println("Invalid date in if-modified-since header");
+    private static String resolveAction(RequestContext context) throws Exception {
+        // Name of the route for the request, null if the request was already answered
+        switch (context.getMethod()) {
+            case "GET":
+                if (context.getExchange().getRequestURI().getQuery() == null) {
+                    String mainChannel = "https://localhost:8001/chat?channel=main";
+
+                    context.getResponseHeaders().add("Location", mainChannel);
+                    context.respondEmpty(302);
+                    return null;
+                } else if (context.getParams().containsKey("search")) {
+                    return "search";
+                } else if (context.getParams().containsKey("channel")) {
+                    return "getMessages";
+                } else if (context.getParams().containsKey("listChannels")) {
+                    return "listChannels";
                 }
-
-            } else {
-                System.out.println("No last-modified header found");
-            }
-            if (headers.containsKey("Content-Type")) {
-                contentType = headers.get("Content-Type").get(0);
-            } else {
-                response = "No Content-Type specified in request";
-                responseCode = 400;
-            }
-
-            // List all different channels available
-            if (action.equals("listChannels")) {
-                ArrayList<String> channels = db.listChannels();
-                String responseChannels = channels.toString();
-                byte[] bytes = responseChannels.getBytes("UTF-8");
-
-                exchange.sendResponseHeaders(200, bytes.length);
-
-                OutputStream os = exchange.getResponseBody();
-                os.write(bytes);
-
-                os.flush();
-                os.close();
-
-                // Return messages from specified channel
-            } else if (action.equals("getMessages")) {
-
-                //Formatter for timestamps
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
-                ArrayList<ChatMessage> dbMessages = db.getMessages(channel, messagesSince);
-                if (dbMessages.isEmpty()) {
-                    exchange.sendResponseHeaders(204, -1);
-                } else {
-                    //Sort messages by timestamp
-
-                    Collections.sort(dbMessages, (ChatMessage lhs, ChatMessage rhs) -> lhs.sent.compareTo(rhs.sent));
-
-                    //Create JSONArray to add messages to
-                    JSONArray responseMessages = new JSONArray();
-
-                    LocalDateTime latest = null;
-
-                    for (ChatMessage message : dbMessages) {
-
-                        //Keep track of latest message in db
-                        if (latest == null || message.sent.isAfter(latest)) {
-                            latest = message.sent;
-                        }
-
-                        //Format timestamps
-                        ZonedDateTime zonedDateTime = message.sent.atZone(ZoneId.of("UTC"));
-                        String formattedTimestamp = zonedDateTime.format(formatter);
-
-                        //Create new JSONObject with message details
-                        JSONObject json = new JSONObject();
-
-                        json.put("user", message.userName);
-                        json.put("message", message.message);
-                        json.put("sent", formattedTimestamp);
-                        json.put("tag", message.tag);
-
-                        //Add JSONObject to JSONArray
-                        responseMessages.put(json);
-                    }
-
-                    if (latest != null) {
-                        ZonedDateTime zonedDateTime = latest.atZone(ZoneId.of("UTC"));
-                        String latestFormatted = zonedDateTime.format(formatter);
-
-                        //Add last-modified header with value of latest msg timestamp
-                        exchange.getResponseHeaders().add("Last-Modified", latestFormatted);
-                    }
-
-                    String JSON = responseMessages.toString();
-                    byte[] bytes = JSON.getBytes("UTF-8");
-
-                    exchange.sendResponseHeaders(200, bytes.length);
-
-                    OutputStream os = exchange.getResponseBody();
-                    os.write(bytes);
-
-                    os.flush();
-                    os.close();
+                throw new RequestException(400, "Invalid action specified. To get messages, use action getMessages, and specify channel."
+                        + " To list channels, use action listChannels.");
+            case "POST":
+            case "PUT":
+            case "DELETE":
+                checkJsonBody(context);
+                JSONObject body = context.getBody();
+                if (body.isEmpty()) {
+                    throw new RequestException(400, "Text was empty.");
                 }
-            } else {
-                response = "Invalid action specified. To get messages, use action getMessages, and specify channel."
-                        + " To list channels, use action listChannels.";
-                responseCode = 400;
-            }
-        } catch (IOException | SQLException | JSONException | NullPointerException e) {
-            e.printStackTrace();
+                if (body.has("action")) {
+                    return body.getString("action");
+                }
+                if (context.getMethod().equals("POST")) {
+                    // Plain POST without an action is a new chat message
+                    return "postMessage";
+                }
+                throw new RequestException(400, "No action specified");
+            default:
+                throw new RequestException(400, "Not supported");
         }
     }
 
-    private void handlePutRequest(HttpExchange exchange) throws IOException {
-        //Handle PUT-request
-        response = "";
-        responseCode = 200;
-        try {
-            //Handle PUT request
-            Headers headers = exchange.getRequestHeaders();
-            int contentLength = 0;
-            String contentType = "";
-
-            if (headers.containsKey("Content-Length")) {
-                contentLength = Integer.valueOf(headers.get("Content-Length").get(0));
-            } else {
-                response = "Content-Length not specified";
-                responseCode = 411;
-            }
-
-            if (headers.containsKey("Content-Type")) {
-                contentType = headers.get("Content-Type").get(0);
-            } else {
-                response = "No Content-Type specified in request";
-                responseCode = 400;
-            }
-
-            if (contentType.equalsIgnoreCase("application/json")) {
-                InputStream stream = exchange.getRequestBody();
-
-                String text = new BufferedReader(new InputStreamReader(stream,
-                        StandardCharsets.UTF_8))
-                        .lines()
-                        .collect(Collectors.joining("\n"));
-
-                stream.close();
-
-                JSONObject requestBody = new JSONObject(text);
-
-                if (!text.isEmpty()) {
-
-                    String user = requestBody.getString("user");
-                    String action = requestBody.getString("action");
-
-                    int messageID = 0;
-                    String message = null;
-
-                    ChatDatabase db = ChatDatabase.getInstance();
-
-                    if (action.equals("editUser")) {
-                        JSONObject userDetails = requestBody.getJSONObject("userdetails");
-                        String updatedUsername = userDetails.getString("updatedUsername");
-                        String updatedEmail = userDetails.getString("updatedEmail");
-                        String updatedNickname = userDetails.getString("updatedNickname");
-                        String role = userDetails.getString("role");
-
-                        db.editUserDetails(user, updatedUsername, updatedEmail, role, updatedNickname);
-                        exchange.sendResponseHeaders(200, -1);
-
-                        //Edit message with specified id
-                    } else if (action.equals("editMessage")) {
-                        messageID = requestBody.getInt("messageid");
-                        message = requestBody.getString("message");
-                        db.editMessage(messageID, user, message);
-                        exchange.sendResponseHeaders(200, -1);
-
-                        // Edit user's password
-                    } else if (action.equals("editPassword")) {
-                        String updatedPassword = requestBody.getString("updatedPassword");
-                        db.editUserPassword(user, updatedPassword);
-                        if (db.editUserPassword(user, updatedPassword) == true) {
-                            exchange.sendResponseHeaders(200, -1);
-                        }
-                    }
-
-                } else {
-                    response = "Text was empty.";
-                    responseCode = 400;
-                }
-
-            } else {
-                //Return error code if headers don't match JSON-type
-                responseCode = 400;
-                response = "Content-Type must be application/json";
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            response = "JSON file not valid";
-            responseCode = 400;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("Error editing user");
+    private static void checkJsonBody(RequestContext context) throws RequestException {
+        if (context.getHeader("Content-Length") == null
+                && !"chunked".equalsIgnoreCase(context.getHeader("Transfer-Encoding"))) {
+            throw new RequestException(411, "Content-Length not specified");
+        }
+        String contentType = context.getHeader("Content-Type");
+        if (contentType == null) {
+            throw new RequestException(400, "No Content-Type specified in request");
+        }
+        if (!contentType.equalsIgnoreCase("application/json")) {
+            //Return error code if headers don't match JSON-type
+            throw new RequestException(400, "Content-Type must be application/json");
         }
     }
 
-    private void handleDeleteRequest(HttpExchange exchange) throws IOException {
-        // Handle DELETE request
-        response = "";
-        responseCode = 200;
-        try {
-            Headers headers = exchange.getRequestHeaders();
-            int contentLength = 0;
-            String contentType = "";
-
-            if (headers.containsKey("Content-length")) {
-                contentLength = Integer.valueOf(headers.get("Content-Length").get(0));
-            } else {
-                response = "Content-length not defined";
-                responseCode = 411;
-            }
+    public String getStats() {
+        return getMessages.getStats();
+    }
 
-            if (headers.containsKey("Content-Type")) {
-                contentType = headers.get("Content-Type").get(0);
+    static Map<String, String> parseQuery(String query) {
+        // Split query string into parameters, e.g. "channel=main&wait=25"
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int split = param.indexOf('=');
+            if (split < 0) {
+                params.put(param, "");
             } else {
-                response = "No Content-Type specified in request";
-                responseCode = 400;
+                params.put(param.substring(0, split), param.substring(split + 1));
             }
-
-            if (contentType.equalsIgnoreCase("application/json")) {
-
-                InputStream stream = exchange.getRequestBody();
-
-                String text = new BufferedReader(new InputStreamReader(stream,
-                        StandardCharsets.UTF_8))
-                        .lines()
-                        .collect(Collectors.joining("\n"));
-
-                stream.close();
-
-                JSONObject requestBody = new JSONObject(text);
-
-                if (!text.isEmpty()) {
-
-                    String user = requestBody.getString("user");
-                    String action = requestBody.getString("action");
-
-                    ChatDatabase db = ChatDatabase.getInstance();
-
-                    //Check if user has admin rights before deleting user from db
-                    if (action.equals("remove")) {
-                        JSONObject userDetails = requestBody.getJSONObject("userdetails");
-                        String role = requestBody.getJSONObject("userdetails").getString("role");
-                        if (role.equals("admin")) {
-                            String username = userDetails.getString("username");
-                            String password = userDetails.getString("password");
-                            String email = userDetails.getString("email");
-                            db.adminDeleteUser(user);
-                            exchange.sendResponseHeaders(200, -1);
-                        } else {
-                            System.out.println("Only admin is authorized to remove users.");
-                            response = "Not authorized: admin rights required to remove user";
-                            responseCode = 401;
-                        }
-                        //Delete message with specified id
-                    } else if (action.equals("deletemessage")) {
-                        int messageID = requestBody.getInt("messageid");
-                        //String channel = requestBody.getString("channel");
-                        db.deleteMessage(messageID, user);
-                        exchange.sendResponseHeaders(200, -1);
-                    }
-                } else {
-                    response = "Text was empty.";
-                    responseCode = 400;
-                }
-
-            } else if (!contentType.isEmpty() && !contentType.equalsIgnoreCase("text/plain")) {
-                response = "Username to be deleted must be passed in text format: Content-Type: text/plain";
-                responseCode = 411;
-            }
-        } catch (IOException | NumberFormatException | JSONException e) {
-            e.printStackTrace();
-            System.out.println("Invalid JSON-file");
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-    }
-
-    private void handleBadRequest() throws IOException {
-        // Handle error if request not GET, POST, DELETE OR PUT
-        response = "Not supported";
-        responseCode = 400;
+        return params;
     }
 }
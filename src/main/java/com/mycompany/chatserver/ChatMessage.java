@@ -4,6 +4,7 @@ import java.time.LocalDateTime;
 
 public class ChatMessage {
 
+    public long id;
     public LocalDateTime sent;
     public String userName;
     public String message;
@@ -1,16 +1,16 @@
 package com.mycompany.chatserver;
 
 import com.sun.net.httpserver.HttpContext;
-import java.net.InetSocketAddress;
-import com.sun.net.httpserver.HttpsConfigurator;
-import com.sun.net.httpserver.HttpsParameters;
-import com.sun.net.httpserver.HttpsServer;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
@@ -20,33 +20,63 @@ public class ChatServer {
 
     public static void main(String[] args) throws Exception {
         try {
-            HttpsServer server = HttpsServer.create(new InetSocketAddress(8001), 0);
-
             // Pass arguments given on launch to sslContext (keystore, keystore pass)
+            TlsSettings.setUp();
             SSLContext sslContext = chatServerSSLContext(args[1], args[2]);
+            SSLParameters sslParameters = TlsSettings.createParameters(sslContext);
 
-            server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
-
-                @Override
-                public void configure(HttpsParameters params) {
-                    InetSocketAddress remote = params.getClientAddress();
-                    SSLContext c = getSSLContext();
-                    SSLParameters sslparams = c.getDefaultSSLParameters();
-                    params.setSSLParameters(sslparams);
-                }
-            });
+            HttpTransport server = createTransport(ChatConfig.getString("http.engine", "jdk"), 8001, sslContext, sslParameters);
 
             ChatAuthenticator auth = new ChatAuthenticator();
-            HttpContext chatContext = server.createContext("/chat", new ChatHandler());
-            chatContext.setAuthenticator(auth);
+            ChatHandler chatHandler = new ChatHandler();
+            HttpContext chatContext = server.createContext("/chat", chatHandler);
+            //Accept session tokens from /login, or Basic authentication
+            ChatTokenAuthenticator tokenAuth = new ChatTokenAuthenticator(auth);
+            chatContext.setAuthenticator(tokenAuth);
+
+            //Server-Sent Events stream of channel updates
+            ChannelSubscriptions subscriptions = new ChannelSubscriptions(ChatConfig.getInt("stream.maxStreams", 10000));
+            ChatDatabase.getInstance().addMessageListener(subscriptions);
+            HttpContext streamContext = server.createContext("/chat/stream", new StreamHandler(subscriptions));
+            streamContext.setAuthenticator(tokenAuth);
+
+            HttpContext registrationContext = server.createContext("/registration", new RegistrationHandler(auth));
+            HttpContext loginContext = server.createContext("/login", new LoginHandler());
+
+            //Rate limits per remote address and user, and a limit of requests handled at once
+            chatHandler.addMiddleware(new RequestMetrics(chatHandler::isRoute));
+            RequestLimits limits = null;
+            if (ChatConfig.getBoolean("ratelimit.enabled", true)) {
+                limits = new RequestLimits();
+                RateLimitFilter filter = new RateLimitFilter(limits, true);
+                chatContext.getFilters().add(filter);
+                registrationContext.getFilters().add(filter);
+                loginContext.getFilters().add(filter);
+                streamContext.getFilters().add(new RateLimitFilter(limits, false));
+                chatHandler.addMiddleware(limits);
+                Metrics.gauge("chat_http_in_flight_requests", "Requests being handled", "", limits::getInFlight);
+            }
 
-            server.createContext("/registration", new RegistrationHandler(auth));
+            //Prometheus metrics, only for admin users
+            HttpContext metricsContext = server.createContext("/metrics", new MetricsHandler());
+            metricsContext.setAuthenticator(tokenAuth);
+            Metrics.gauge("chat_event_streams", "Open event streams and WebSocket subscriptions", "", subscriptions::getSubscriberCount);
+            Metrics.gauge("chat_sessions", "Active session tokens", "", () -> SessionManager.getInstance().getSessionCount());
 
             // Enable multithread support
-            server.setExecutor(Executors.newCachedThreadPool());
+            server.setExecutor(createExecutor(ChatConfig.getString("http.executor", "virtual")));
 
             server.start();
 
+            //WebSocket endpoint on its own port, shares channel subscriptions with the event streams
+            WebSocketServer webSocketServer = null;
+            if (ChatConfig.getBoolean("ws.enabled", true)) {
+                webSocketServer = new WebSocketServer(ChatConfig.getInt("ws.port", 8002), sslContext,
+                        sslParameters, subscriptions, auth);
+                webSocketServer.start();
+                Metrics.gauge("chat_websocket_connections", "Open WebSocket connections", "", webSocketServer::getConnectionCount);
+            }
+
             try {
                 System.out.println("Starting server..\n");
                 if (args.length != 3) {
@@ -67,7 +97,7 @@ public class ChatServer {
             Scanner reader = new Scanner(System.in);
 
             while (running) {
-                System.out.println("To quit, type /quit");
+                System.out.println("To quit, type /quit. To show server status, type /status");
                 String command = String.valueOf(reader.nextLine());
 
                 // If user types command /quit, server will shut down in 3 seconds
@@ -75,6 +105,22 @@ public class ChatServer {
                     running = false;
                     System.out.println("--------Shutting down server--------");
                     server.stop(3);
+                    if (webSocketServer != null) {
+                        webSocketServer.stop();
+                    }
+                    database.close();
+                } else if (command.equals("/status")) {
+                    System.out.println(database.getStats());
+                    System.out.println(chatHandler.getStats());
+                    System.out.println(Metrics.getSummary());
+                    System.out.println(TlsSettings.getStats());
+                    System.out.println(server.getStats());
+                    if (limits != null) {
+                        System.out.println(limits.getStats());
+                    }
+                    if (webSocketServer != null) {
+                        System.out.println(webSocketServer.getStats());
+                    }
                 }
             }
         } catch (FileNotFoundException e) {
@@ -88,6 +134,58 @@ public class ChatServer {
         }
     }
 
+    private static HttpTransport createTransport(String engine, int port, SSLContext sslContext, SSLParameters sslParameters) throws IOException {
+        // jdk: the JDK's HttpsServer
+        // nio: selector based server, connections waiting between requests don't hold a thread
+        if (engine.equals("nio")) {
+            System.out.println("Using the NIO HTTP engine");
+            return new NioHttpTransport(port, sslContext, sslParameters);
+        }
+        if (!engine.equals("jdk")) {
+            System.out.println("Unknown HTTP engine " + engine + ", using the JDK HttpsServer");
+        }
+        return new JdkHttpTransport(port, sslContext, sslParameters);
+    }
+
+    private static ExecutorService createExecutor(String mode) {
+        // virtual: a virtual thread per request, needs Java 21 or newer
+        // bounded: a fixed number of platform threads, further requests wait in a queue
+        // cached: a new platform thread whenever all existing ones are busy
+        // An open event stream keeps its thread for as long as it is connected, so a bounded
+        // pool is only safe when it has more threads than there can be streams.
+        if (mode.equals("virtual")) {
+            try {
+                // Looked up at runtime so the server still builds and runs on older JDKs
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                System.out.println("Handling requests on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // Not the bounded pool, event streams would take all of its threads
+                System.out.println("Virtual threads not available on this Java version, using a cached thread pool"
+                        + " with a thread per concurrent request instead");
+                mode = "cached";
+            }
+        }
+        if (mode.equals("cached")) {
+            return Executors.newCachedThreadPool();
+        }
+        if (!mode.equals("bounded")) {
+            System.out.println("Unknown executor " + mode + ", using a bounded thread pool");
+        }
+        int threads = ChatConfig.getInt("http.threads", 64);
+        int maxStreams = ChatConfig.getInt("stream.maxStreams", 10000);
+        if (maxStreams >= threads) {
+            System.out.println("Warning: up to " + maxStreams + " event streams can be open but the bounded executor has "
+                    + threads + " threads, other requests wait while all threads hold streams");
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "http-worker-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
     private static SSLContext chatServerSSLContext(String keystore, String pass) throws Exception {
 
         char[] passphrase = pass.toCharArray();
@@ -100,9 +198,6 @@ public class ChatServer {
         TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
         tmf.init(ks);
 
-        SSLContext ssl = SSLContext.getInstance("TLS");
-        ssl.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-
-        return ssl;
+        return TlsSettings.createContext(kmf.getKeyManagers(), tmf.getTrustManagers());
     }
 }
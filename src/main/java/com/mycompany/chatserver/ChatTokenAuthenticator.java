@@ -0,0 +1,32 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+public class ChatTokenAuthenticator extends Authenticator {
+
+    // Accepts "Authorization: Bearer <token>" with a token from /login, checked with an
+    // in-memory lookup. Requests without a token fall back to Basic authentication.
+    private final ChatAuthenticator basicAuthenticator;
+
+    public ChatTokenAuthenticator(ChatAuthenticator basicAuthenticator) {
+        this.basicAuthenticator = basicAuthenticator;
+    }
+
+    @Override
+    public Result authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+
+        if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            String token = authorization.substring(7).trim();
+            String username = SessionManager.getInstance().validate(token);
+            if (username != null) {
+                return new Success(new HttpPrincipal(username, "chat"));
+            }
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer realm=\"chat\"");
+            return new Failure(401);
+        }
+        return basicAuthenticator.authenticate(exchange);
+    }
+}
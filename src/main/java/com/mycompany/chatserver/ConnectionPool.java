@@ -0,0 +1,211 @@
+package com.mycompany.chatserver;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConnectionPool {
+
+    private final String name;
+    private final String url;
+    private final Properties connectionProperties;
+    private final List<String> initStatements;
+    private final int maxSize;
+    private final long waitTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final int statementCacheSize;
+
+    private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    private final ScheduledExecutorService leakChecker;
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String name, String url, Properties connectionProperties, List<String> initStatements,
+            int maxSize, long waitTimeoutMillis, long leakThresholdMillis, int statementCacheSize) {
+        this.name = name;
+        this.url = url;
+        this.connectionProperties = connectionProperties;
+        this.initStatements = initStatements;
+        this.maxSize = Math.max(1, maxSize);
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.statementCacheSize = Math.max(1, statementCacheSize);
+
+        if (leakThresholdMillis > 0) {
+            leakChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, name + "-leak-checker");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1000, leakThresholdMillis / 2);
+            leakChecker.scheduleAtFixedRate(this::checkForLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            leakChecker = null;
+        }
+    }
+
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+        PooledConnection c = idle.poll();
+        if (c == null) {
+            c = tryCreate();
+        }
+        if (c == null) {
+            // Pool is at its maximum size, wait for a connection to be returned
+            waits.increment();
+            try {
+                c = idle.poll(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection");
+            }
+            if (c == null) {
+                timeouts.increment();
+                throw new SQLException("Timed out waiting for a database connection from pool " + name);
+            }
+        }
+        borrows.increment();
+        c.borrowedAt = System.currentTimeMillis();
+        c.borrowSite = leakChecker != null ? new Throwable("Connection borrowed here") : null;
+        c.leakReported = false;
+        borrowed.add(c);
+        return c;
+    }
+
+    private PooledConnection tryCreate() throws SQLException {
+        while (true) {
+            int current = size.get();
+            if (current >= maxSize) {
+                return null;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        try {
+            return new PooledConnection(this, openConnection(), statementCacheSize);
+        } catch (SQLException | RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    protected Connection openConnection() throws SQLException {
+        Connection db = DriverManager.getConnection(url, connectionProperties);
+        // Run per-connection setup such as PRAGMA statements
+        try (Statement s = db.createStatement()) {
+            for (String sql : initStatements) {
+                s.execute(sql);
+            }
+        } catch (SQLException e) {
+            db.close();
+            throw e;
+        }
+        return db;
+    }
+
+    void release(PooledConnection c) {
+        if (!borrowed.remove(c)) {
+            // Already returned
+            return;
+        }
+        boolean healthy = true;
+        try {
+            Connection db = c.getConnection();
+            if (db.isClosed()) {
+                healthy = false;
+            } else if (!db.getAutoCommit()) {
+                // Caller left a transaction open, roll it back before reuse
+                db.rollback();
+                db.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            healthy = false;
+        }
+
+        if (closed || !healthy) {
+            c.closeQuietly();
+            size.decrementAndGet();
+        } else {
+            idle.offer(c);
+        }
+    }
+
+    private void checkForLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection c : borrowed) {
+            if (!c.leakReported && now - c.borrowedAt > leakThresholdMillis) {
+                c.leakReported = true;
+                leaks.increment();
+                System.out.println("Possible connection leak in pool " + name + ": connection held for "
+                        + (now - c.borrowedAt) + " ms");
+                if (c.borrowSite != null) {
+                    c.borrowSite.printStackTrace(System.out);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if (leakChecker != null) {
+            leakChecker.shutdownNow();
+        }
+        PooledConnection c;
+        while ((c = idle.poll()) != null) {
+            c.closeQuietly();
+            size.decrementAndGet();
+        }
+    }
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStats() {
+        return name + ": size=" + size.get() + "/" + maxSize
+                + ", active=" + borrowed.size()
+                + ", idle=" + idle.size()
+                + ", borrows=" + borrows.sum()
+                + ", waits=" + waits.sum()
+                + ", timeouts=" + timeouts.sum()
+                + ", leaks=" + leaks.sum();
+    }
+}
@@ -0,0 +1,166 @@
+package com.mycompany.chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CredentialCache {
+
+    // Remembers recently verified username and password pairs so that repeated requests
+    // don't have to run the slow password hash. Only an HMAC of the password is kept,
+    // keyed with a random secret that exists only in this process.
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    // Bumped on every invalidation, verifications that started before it are not cached
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class Entry {
+
+        final byte[] digest;
+        final long expiresAt;
+
+        Entry(byte[] digest, long expiresAt) {
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public CredentialCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttlMillis > 0;
+    }
+
+    public boolean isVerified(String username, String password) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Entry entry = entries.get(username);
+        if (entry == null) {
+            misses.increment();
+            return false;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(username, entry);
+            evictions.increment();
+            misses.increment();
+            return false;
+        }
+        if (MessageDigest.isEqual(entry.digest, digest(username, password))) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    public long stamp() {
+        // Take before verifying the password, and pass to put() afterwards
+        return invalidations.get();
+    }
+
+    public void put(String username, String password, long stamp) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (entries.size() >= maxEntries && !entries.containsKey(username)) {
+            evict();
+        }
+        Entry entry = new Entry(digest(username, password), System.currentTimeMillis() + ttlMillis);
+        entries.put(username, entry);
+
+        // User was changed while the password was being verified, don't keep the result
+        if (invalidations.get() != stamp) {
+            entries.remove(username, entry);
+        }
+    }
+
+    public void invalidate(String username) {
+        invalidations.incrementAndGet();
+        entries.remove(username);
+    }
+
+    private void evict() {
+        // Drop expired entries, and if none were expired drop an arbitrary one
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expiresAt < now) {
+                it.remove();
+                removed++;
+            }
+        }
+        if (removed == 0) {
+            it = entries.entrySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+                removed++;
+            }
+        }
+        evictions.add(removed);
+    }
+
+    private byte[] digest(String username, String password) {
+        Mac mac = macs.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    public String getStats() {
+        return "credential-cache: size=" + entries.size() + "/" + maxEntries
+                + ", hits=" + hits.sum()
+                + ", misses=" + misses.sum()
+                + ", evictions=" + evictions.sum();
+    }
+}
@@ -0,0 +1,52 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.format.DateTimeParseException;
+import org.json.JSONException;
+
+public class ErrorMapper {
+
+    // Turns exceptions thrown by routes into error responses, so every route reports the
+    // same failure with the same status code and message
+    private ErrorMapper() {
+    }
+
+    public static void respond(RequestContext context, Exception e) {
+        int status;
+        String message;
+        if (e instanceof RequestException) {
+            status = ((RequestException) e).getStatus();
+            message = e.getMessage();
+        } else if (e instanceof RequestBodyReader.BodyTooLargeException) {
+            status = 413;
+            message = "Request body too large";
+        } else if (e instanceof JSONException) {
+            System.out.println("Invalid JSON-file: " + e.getMessage());
+            status = 400;
+            message = "JSON file not valid";
+        } else if (e instanceof DateTimeParseException) {
+            status = 400;
+            message = "Invalid timestamp";
+        } else if (e instanceof SQLException) {
+            e.printStackTrace();
+            status = 500;
+            message = "Database error";
+        } else {
+            e.printStackTrace();
+            status = 500;
+            message = "Internal server error";
+        }
+
+        if (context.isResponded()) {
+            // Too late to change the status, the client sees a cut off response
+            System.out.println("Error after response was sent: " + message);
+            return;
+        }
+        try {
+            context.respond(status, message);
+        } catch (IOException sendError) {
+            System.out.println("Could not send error response: " + sendError.getMessage());
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+
+public class GetMessagesRoute implements Route {
+
+    // GET /chat?channel=name, the newest messages or the ones after If-Modified-Since,
+    // optionally waiting for new messages with &wait=seconds. With before, after or limit
+    // the channel history is paged by message id instead.
+    private static final int MAX_WAIT_SECONDS = ChatConfig.getInt("chat.maxWaitSeconds", 60);
+    private static final int MAX_PAGE_SIZE = ChatConfig.getInt("chat.maxPageSize", 500);
+    private static final int DEFAULT_PAGE_SIZE = Math.min(100, MAX_PAGE_SIZE);
+
+    //Formatter for timestamps
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+
+    private final LongPollManager longPolls;
+    private final ChannelSnapshotCache snapshots;
+
+    public GetMessagesRoute() {
+        longPolls = new LongPollManager();
+        snapshots = new ChannelSnapshotCache(ChatConfig.getInt("cache.maxSnapshots", 1000));
+        ChatDatabase.getInstance().addMessageListener(longPolls);
+        Metrics.gauge("chat_long_poll_waiters", "Parked long poll requests", "", longPolls::getWaiterCount);
+    }
+
+    @Override
+    public void handle(RequestContext context) throws Exception {
+        String channel = context.getParam("channel");
+        long messagesSince = -1;
+
+        if (context.getParam("before") != null || context.getParam("after") != null || context.getParam("limit") != null) {
+            sendPage(context, channel);
+            return;
+        }
+
+        String lastModified = context.getHeader("If-Modified-Since");
+        if (lastModified != null) {
+            try {
+                ZonedDateTime zd = ZonedDateTime.parse(lastModified);
+                LocalDateTime fromWhichDate = zd.toLocalDateTime();
+                messagesSince = fromWhichDate.toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeException e) {
+                System.out.println("Invalid date in if-modified-since header");
+            }
+        }
+
+        ChatDatabase db = ChatDatabase.getInstance();
+        int wait = parseWait(context.getParam("wait"));
+
+        if (wait > 0) {
+            // Long poll: park the request until a newer message is committed or wait runs out
+            final long pollSince = messagesSince;
+            LongPollManager.Waiter waiter = longPolls.park(channel, messagesSince, wait,
+                    timedOut -> completeLongPoll(context, channel, pollSince));
+
+            if (waiter != null) {
+                context.detach();
+                // Check the database after registering, so a message committed in between isn't missed
+                if (hasNothingNewer(channel, messagesSince)) {
+                    return;
+                }
+                ArrayList<ChatMessage> dbMessages = db.getMessages(channel, messagesSince);
+                if (!dbMessages.isEmpty() && waiter.cancel()) {
+                    try {
+                        sendMessages(context, dbMessages);
+                    } finally {
+                        context.getExchange().close();
+                    }
+                }
+                return;
+            }
+        }
+
+        if (messagesSince == -1) {
+            sendNewestMessages(context, channel);
+        } else if (hasNothingNewer(channel, messagesSince)) {
+            context.respondEmpty(204);
+        } else {
+            ArrayList<ChatMessage> dbMessages = db.getMessages(channel, messagesSince);
+            if (dbMessages.isEmpty()) {
+                context.respondEmpty(204);
+            } else {
+                sendMessages(context, dbMessages);
+            }
+        }
+    }
+
+    private void sendPage(RequestContext context, String channel) throws Exception {
+        // Keyset pagination on the message id: each page is one indexed range query, however
+        // far back the client has scrolled. One extra row tells whether there is a next page.
+        String before = context.getParam("before");
+        String after = context.getParam("after");
+        if (before != null && after != null) {
+            throw new RequestException(400, "Use either before or after, not both");
+        }
+        int limit = parseLimit(context.getParam("limit"));
+        ChatDatabase db = ChatDatabase.getInstance();
+
+        ArrayList<ChatMessage> page;
+        long nextCursor = -1;
+        if (after != null) {
+            //Oldest first, the cursor is the newest id so far, to continue forward
+            page = db.getMessagesAfterId(channel, parseCursor(after), limit + 1);
+            if (page.size() > limit) {
+                page.remove(limit);
+            }
+            if (!page.isEmpty()) {
+                nextCursor = page.get(page.size() - 1).id;
+            }
+        } else {
+            //Newest first from the database, the cursor is the oldest id to continue backwards
+            page = db.getMessagesBeforeId(channel, before != null ? parseCursor(before) : Long.MAX_VALUE, limit + 1);
+            if (page.size() > limit) {
+                page.remove(limit);
+                nextCursor = page.get(limit - 1).id;
+            }
+            Collections.reverse(page);
+        }
+
+        String encoding = ResponseCompression.negotiate(context.getHeader("Accept-Encoding"));
+        context.getResponseHeaders().add("Vary", "Accept-Encoding");
+        context.getResponseHeaders().add("Content-Type", "application/json");
+        context.responded(200);
+        MessageJsonWriter.sendPage(context.getExchange(), page, nextCursor, encoding);
+    }
+
+    private static long parseCursor(String cursor) throws RequestException {
+        try {
+            return Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Invalid cursor: " + cursor);
+        }
+    }
+
+    private static int parseLimit(String limit) throws RequestException {
+        if (limit == null || limit.isEmpty()) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        try {
+            return Math.max(1, Math.min(Integer.parseInt(limit), MAX_PAGE_SIZE));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Invalid limit: " + limit);
+        }
+    }
+
+    private void completeLongPoll(RequestContext context, String channel, long messagesSince) {
+        // Runs on a long poll responder thread when a parked request is woken up or times out
+        try {
+            ArrayList<ChatMessage> dbMessages = ChatDatabase.getInstance().getMessages(channel, messagesSince);
+            if (dbMessages.isEmpty()) {
+                context.respondEmpty(204);
+            } else {
+                sendMessages(context, dbMessages);
+            }
+        } catch (IOException | RuntimeException e) {
+            ErrorMapper.respond(context, e);
+        } finally {
+            context.getExchange().close();
+        }
+    }
+
+    private void sendNewestMessages(RequestContext context, String channel) throws IOException {
+        // The newest messages of a channel only change with the channel version, so the
+        // encoded response is reused and If-None-Match is answered from the version alone
+        ChatDatabase db = ChatDatabase.getInstance();
+        long version = db.getChannelVersion(channel);
+        String etag = snapshots.etag(version);
+
+        if (snapshots.matches(context.getHeader("If-None-Match"), etag)) {
+            context.getResponseHeaders().add("Vary", "Accept-Encoding");
+            context.getResponseHeaders().add("ETag", etag);
+            context.respondEmpty(304);
+            return;
+        }
+
+        ChannelSnapshotCache.Snapshot snapshot = currentSnapshot(channel, version);
+        if (snapshot == null) {
+            context.respondEmpty(204);
+        } else {
+            sendSnapshot(context, snapshot);
+        }
+    }
+
+    private ChannelSnapshotCache.Snapshot currentSnapshot(String channel, long version) {
+        // Snapshot of the newest messages at the given version, null if the channel is empty
+        ChannelSnapshotCache.Snapshot snapshot = snapshots.get(channel, version);
+        if (snapshot == null) {
+            ChatDatabase db = ChatDatabase.getInstance();
+            ArrayList<ChatMessage> dbMessages = db.getMessages(channel, -1);
+            if (dbMessages.isEmpty()) {
+                return null;
+            }
+            snapshot = encodeMessages(dbMessages, version, snapshots.etag(version));
+            // Only keep it if nothing changed while it was built
+            if (db.getChannelVersion(channel) == version) {
+                snapshots.put(channel, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private boolean hasNothingNewer(String channel, long messagesSince) {
+        // Answered from the newest messages snapshot, which is shared by all polling clients
+        ChannelSnapshotCache.Snapshot snapshot = currentSnapshot(channel, ChatDatabase.getInstance().getChannelVersion(channel));
+        return snapshot == null || messagesSince >= snapshot.latest;
+    }
+
+    private static void sendMessages(RequestContext context, ArrayList<ChatMessage> dbMessages) throws IOException {
+        //Sort messages by timestamp
+        Collections.sort(dbMessages, (ChatMessage lhs, ChatMessage rhs) -> lhs.sent.compareTo(rhs.sent));
+
+        String encoding = ResponseCompression.negotiate(context.getHeader("Accept-Encoding"));
+        context.getResponseHeaders().add("Vary", "Accept-Encoding");
+
+        if (!dbMessages.isEmpty()) {
+            //Add last-modified header with value of latest msg timestamp
+            context.getResponseHeaders().add("Last-Modified", formatTimestamp(dbMessages.get(dbMessages.size() - 1).sent));
+        }
+        //Written straight to the response instead of building the whole JSON text first
+        context.responded(200);
+        MessageJsonWriter.send(context.getExchange(), dbMessages, encoding);
+    }
+
+    private static ChannelSnapshotCache.Snapshot encodeMessages(ArrayList<ChatMessage> dbMessages, long version, String etag) {
+        //Sort messages by timestamp, the last one is the latest message in db
+        Collections.sort(dbMessages, (ChatMessage lhs, ChatMessage rhs) -> lhs.sent.compareTo(rhs.sent));
+
+        LocalDateTime latest = dbMessages.get(dbMessages.size() - 1).sent;
+        byte[] bytes = MessageJsonWriter.toBytes(dbMessages);
+        return new ChannelSnapshotCache.Snapshot(version, etag, bytes, formatTimestamp(latest),
+                latest.toInstant(ZoneOffset.UTC).toEpochMilli());
+    }
+
+    private static String formatTimestamp(LocalDateTime time) {
+        ZonedDateTime zonedDateTime = time.atZone(ZoneId.of("UTC"));
+        return zonedDateTime.format(TIMESTAMP_FORMATTER);
+    }
+
+    private static void sendSnapshot(RequestContext context, ChannelSnapshotCache.Snapshot snapshot) throws IOException {
+        if (snapshot.lastModified != null) {
+            //Add last-modified header with value of latest msg timestamp
+            context.getResponseHeaders().add("Last-Modified", snapshot.lastModified);
+        }
+        context.getResponseHeaders().add("Vary", "Accept-Encoding");
+
+        String encoding = ResponseCompression.negotiate(context.getHeader("Accept-Encoding"));
+        if (encoding != null && ResponseCompression.isWorthCompressing(snapshot.body.length)) {
+            // Same content in another encoding, so the tag is weak
+            context.getResponseHeaders().add("ETag", "W/" + snapshot.etag);
+            context.getResponseHeaders().add("Content-Encoding", encoding);
+            context.respond(200, snapshot.compressedBody(encoding));
+        } else {
+            context.getResponseHeaders().add("ETag", snapshot.etag);
+            context.respond(200, snapshot.body);
+        }
+    }
+
+    private static int parseWait(String wait) {
+        if (wait == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Math.min(Integer.parseInt(wait), MAX_WAIT_SECONDS));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String getStats() {
+        return snapshots.getStats() + "\nlong-poll: waiters=" + longPolls.getWaiterCount();
+    }
+}
@@ -0,0 +1,20 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import java.util.concurrent.Executor;
+
+public interface HttpTransport {
+
+    // The HTTPS server the handlers run on. Handlers, filters and authenticators only see
+    // the com.sun.net.httpserver API, so they work the same on every transport.
+    HttpContext createContext(String path, HttpHandler handler);
+
+    void setExecutor(Executor executor);
+
+    void start();
+
+    void stop(int delaySeconds);
+
+    String getStats();
+}
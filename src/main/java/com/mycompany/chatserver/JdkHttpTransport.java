@@ -0,0 +1,54 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+public class JdkHttpTransport implements HttpTransport {
+
+    // The JDK's built-in HttpsServer
+    private final HttpsServer server;
+
+    public JdkHttpTransport(int port, SSLContext sslContext, SSLParameters sslParameters) throws IOException {
+        server = HttpsServer.create(new InetSocketAddress(port), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+
+            @Override
+            public void configure(HttpsParameters params) {
+                params.setSSLParameters(sslParameters);
+            }
+        });
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        return server.createContext(path, handler);
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        server.setExecutor(executor);
+    }
+
+    @Override
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+    }
+
+    @Override
+    public String getStats() {
+        return "http: jdk engine";
+    }
+}
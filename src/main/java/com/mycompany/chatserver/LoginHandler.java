@@ -0,0 +1,121 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class LoginHandler implements HttpHandler {
+
+    public LoginHandler() {
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+
+        String errorResponse = "";
+        int code = 200;
+
+        try {
+            if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                //Handle POST request (log in with username and password)
+                Headers headers = exchange.getRequestHeaders();
+                String contentType = "";
+
+                if (headers.containsKey("Content-Type")) {
+                    contentType = headers.get("Content-Type").get(0);
+                } else {
+                    errorResponse = "No Content-Type specified in request";
+                    code = 400;
+                }
+
+                if (contentType.equalsIgnoreCase("application/json")) {
+                    JSONObject loginMsg = RequestBodyReader.readJson(exchange);
+
+                    String username = loginMsg.getString("username");
+                    String password = loginMsg.getString("password");
+
+                    ChatDatabase db = ChatDatabase.getInstance();
+                    SessionManager sessions = SessionManager.getInstance();
+
+                    long stamp = sessions.stamp(username);
+                    if (db.authenticateUser(username, password)) {
+                        String token = sessions.createSession(username, stamp);
+                        if (token != null) {
+                            JSONObject json = new JSONObject();
+                            json.put("token", token);
+                            json.put("expiresIn", sessions.getIdleTimeoutSeconds());
+
+                            byte[] bytes = json.toString().getBytes("UTF-8");
+                            exchange.getResponseHeaders().add("Content-Type", "application/json");
+                            exchange.sendResponseHeaders(200, bytes.length);
+
+                            OutputStream os = exchange.getResponseBody();
+                            os.write(bytes);
+                            os.flush();
+                            os.close();
+                        } else if (sessions.isStale(username, stamp)) {
+                            //Password was changed or user removed while logging in
+                            code = 401;
+                            errorResponse = "Invalid username or password";
+                        } else {
+                            code = 503;
+                            errorResponse = "Too many active sessions";
+                        }
+                    } else {
+                        code = 401;
+                        errorResponse = "Invalid username or password";
+                    }
+                } else if (code == 200) {
+                    //Return error code if headers don't match JSON-type
+                    code = 400;
+                    errorResponse = "Content-Type must be application/json";
+                }
+            } else if (exchange.getRequestMethod().equalsIgnoreCase("DELETE")) {
+                //Handle DELETE request (log out, ends the session of the given token)
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+                    SessionManager.getInstance().revoke(authorization.substring(7).trim());
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    code = 401;
+                    errorResponse = "No session token in request";
+                }
+            } else {
+                code = 400;
+                errorResponse = "Not supported";
+            }
+        } catch (RequestBodyReader.BodyTooLargeException e) {
+            errorResponse = "Request body too large";
+            code = 413;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            System.out.println("Invalid JSON-file");
+            errorResponse = "JSON file not valid";
+            code = 400;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            errorResponse = "Database error";
+            code = 500;
+        }
+
+        if (code < 200 || code > 299) {
+            //Send error code and error message
+            byte[] bytes = errorResponse.getBytes("UTF-8");
+
+            exchange.sendResponseHeaders(code, bytes.length);
+
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.flush();
+            os.close();
+        }
+        exchange.close();
+        Metrics.recordRequest("login", "login", exchange.getRequestMethod(), code, start);
+    }
+}
@@ -0,0 +1,126 @@
+package com.mycompany.chatserver;
+
+import java.time.ZoneOffset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LongPollManager implements MessageListener {
+
+    // Keeps GET requests that asked to wait for new messages. A parked request holds no
+    // thread, it is completed from the responder pool when a newer message is committed
+    // to its channel or when its wait time runs out.
+    private final ConcurrentHashMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger waiterCount = new AtomicInteger();
+    private final int maxWaiters;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService responders;
+
+    public interface Completion {
+
+        void complete(boolean timedOut);
+    }
+
+    public class Waiter {
+
+        private final String channel;
+        private final long messagesSince;
+        private final Completion completion;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> timeout;
+
+        private Waiter(String channel, long messagesSince, Completion completion) {
+            this.channel = channel;
+            this.messagesSince = messagesSince;
+            this.completion = completion;
+        }
+
+        public boolean cancel() {
+            // Returns true if the caller now owns the exchange and must respond itself
+            if (done.compareAndSet(false, true)) {
+                remove(this);
+                return true;
+            }
+            return false;
+        }
+
+        private void fire(boolean timedOut) {
+            if (done.compareAndSet(false, true)) {
+                remove(this);
+                responders.execute(() -> completion.complete(timedOut));
+            }
+        }
+    }
+
+    public LongPollManager() {
+        maxWaiters = ChatConfig.getInt("chat.maxWaiters", 10000);
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "longpoll-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        responders = Executors.newFixedThreadPool(ChatConfig.getInt("chat.longPollThreads", 4), r -> {
+            Thread t = new Thread(r, "longpoll-responder-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Waiter park(String channel, long messagesSince, int waitSeconds, Completion completion) {
+        // Returns null if too many requests are already waiting
+        if (waiterCount.incrementAndGet() > maxWaiters) {
+            waiterCount.decrementAndGet();
+            return null;
+        }
+        Waiter waiter = new Waiter(channel, messagesSince, completion);
+        waiters.compute(channel, (c, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(waiter);
+            return set;
+        });
+        waiter.timeout = timer.schedule(() -> waiter.fire(true), waitSeconds, TimeUnit.SECONDS);
+        return waiter;
+    }
+
+    private void remove(Waiter waiter) {
+        waiterCount.decrementAndGet();
+        ScheduledFuture<?> timeout = waiter.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        waiters.computeIfPresent(waiter.channel, (c, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public void messageChanged(ChatMessage message) {
+        Set<Waiter> channelWaiters = waiters.get(message.channel);
+        if (channelWaiters == null) {
+            return;
+        }
+        long sent = message.sent.toInstant(ZoneOffset.UTC).toEpochMilli();
+        for (Waiter waiter : channelWaiters) {
+            if (sent > waiter.messagesSince) {
+                waiter.fire(false);
+            }
+        }
+    }
+
+    public int getWaiterCount() {
+        return waiterCount.get();
+    }
+}
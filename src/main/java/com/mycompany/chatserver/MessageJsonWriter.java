@@ -0,0 +1,287 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+
+public class MessageJsonWriter {
+
+    // Encodes message lists as UTF-8 JSON straight into a pooled buffer, without building
+    // JSONObjects or intermediate strings. The output is byte for byte what the org.json
+    // version produced: keys in the order tag, message, user, sent, null values left out,
+    // and strings escaped the way JSONObject.quote does it.
+    private static final int BUFFER_SIZE = 8192;
+    private static final BufferPool BUFFERS = new BufferPool(BUFFER_SIZE, 256, false);
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final ByteBuffer buffer;
+    private final HttpExchange exchange;
+    private final String encoding;
+    private OutputStream out;
+    private boolean headersSent = false;
+
+    private MessageJsonWriter(HttpExchange exchange, OutputStream out, String encoding) {
+        this.buffer = BUFFERS.acquire();
+        this.exchange = exchange;
+        this.out = out;
+        this.encoding = encoding;
+    }
+
+    public static void send(HttpExchange exchange, List<ChatMessage> messages) throws IOException {
+        send(exchange, messages, null);
+    }
+
+    public static void send(HttpExchange exchange, List<ChatMessage> messages, String encoding) throws IOException {
+        // A response that fits in one buffer is sent with its length, a larger one is
+        // streamed with chunked transfer encoding as the buffer fills up. With an encoding
+        // (gzip or deflate) the response is compressed unless it is too small to bother.
+        send(exchange, messages, false, 0, encoding);
+    }
+
+    public static void sendPage(HttpExchange exchange, List<ChatMessage> messages, long nextCursor, String encoding) throws IOException {
+        // {"messages":[...],"nextCursor":id}, nextCursor is left out when it is negative
+        send(exchange, messages, true, nextCursor, encoding);
+    }
+
+    private static void send(HttpExchange exchange, List<ChatMessage> messages, boolean page, long nextCursor, String encoding) throws IOException {
+        MessageJsonWriter writer = new MessageJsonWriter(exchange, exchange.getResponseBody(), encoding);
+        try {
+            if (page) {
+                writer.writePage(messages, nextCursor);
+            } else {
+                writer.writeMessages(messages);
+            }
+            if (!writer.headersSent) {
+                int length = writer.buffer.position();
+                if (encoding != null && ResponseCompression.isWorthCompressing(length)) {
+                    byte[] compressed = ResponseCompression.compress(
+                            Arrays.copyOfRange(writer.buffer.array(), writer.buffer.arrayOffset(), writer.buffer.arrayOffset() + length), encoding);
+                    exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                    exchange.sendResponseHeaders(200, compressed.length);
+                    writer.out.write(compressed);
+                    writer.buffer.clear();
+                } else {
+                    exchange.sendResponseHeaders(200, length);
+                }
+                writer.headersSent = true;
+            }
+            writer.drain();
+            writer.out.flush();
+            writer.out.close();
+        } finally {
+            BUFFERS.release(writer.buffer);
+        }
+    }
+
+    public static byte[] toBytes(List<ChatMessage> messages) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        MessageJsonWriter writer = new MessageJsonWriter(null, bytes, null);
+        try {
+            writer.writeMessages(messages);
+            writer.drain();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        } finally {
+            BUFFERS.release(writer.buffer);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void drain() throws IOException {
+        if (exchange != null && !headersSent) {
+            if (encoding != null) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                exchange.sendResponseHeaders(200, 0);
+                out = ResponseCompression.wrap(out, encoding);
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+            }
+            headersSent = true;
+        }
+        out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        buffer.clear();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    private void writePage(List<ChatMessage> messages, long nextCursor) throws IOException {
+        ensure(1);
+        buffer.put((byte) '{');
+        writeKey(true, "messages");
+        writeMessages(messages);
+        if (nextCursor >= 0) {
+            writeKey(false, "nextCursor");
+            String cursor = Long.toString(nextCursor);
+            ensure(cursor.length());
+            for (int i = 0; i < cursor.length(); i++) {
+                buffer.put((byte) cursor.charAt(i));
+            }
+        }
+        ensure(1);
+        buffer.put((byte) '}');
+    }
+
+    private void writeMessages(List<ChatMessage> messages) throws IOException {
+        ensure(1);
+        buffer.put((byte) '[');
+        boolean first = true;
+        for (ChatMessage message : messages) {
+            ensure(1);
+            if (!first) {
+                buffer.put((byte) ',');
+            }
+            first = false;
+            writeMessage(message);
+        }
+        ensure(1);
+        buffer.put((byte) ']');
+    }
+
+    private void writeMessage(ChatMessage message) throws IOException {
+        ensure(1);
+        buffer.put((byte) '{');
+        boolean first = writeField(true, "tag", message.tag);
+        first = writeField(first, "message", message.message);
+        first = writeField(first, "user", message.userName);
+        if (message.sent != null) {
+            writeKey(first, "sent");
+            writeTimestamp(message.sent);
+        }
+        ensure(1);
+        buffer.put((byte) '}');
+    }
+
+    private boolean writeField(boolean first, String key, String value) throws IOException {
+        if (value == null) {
+            return first;
+        }
+        writeKey(first, key);
+        writeString(value);
+        return false;
+    }
+
+    private void writeKey(boolean first, String key) throws IOException {
+        ensure(key.length() + 4);
+        if (!first) {
+            buffer.put((byte) ',');
+        }
+        buffer.put((byte) '"');
+        for (int i = 0; i < key.length(); i++) {
+            buffer.put((byte) key.charAt(i));
+        }
+        buffer.put((byte) '"');
+        buffer.put((byte) ':');
+    }
+
+    private void writeTimestamp(LocalDateTime sent) throws IOException {
+        ensure(32);
+        int year = sent.getYear();
+        if (year < 0 || year > 9999) {
+            writeString(sent.atZone(ZoneId.of("UTC")).format(FORMATTER));
+            return;
+        }
+        buffer.put((byte) '"');
+        putDigits(year, 1000);
+        buffer.put((byte) '-');
+        putDigits(sent.getMonthValue(), 10);
+        buffer.put((byte) '-');
+        putDigits(sent.getDayOfMonth(), 10);
+        buffer.put((byte) 'T');
+        putDigits(sent.getHour(), 10);
+        buffer.put((byte) ':');
+        putDigits(sent.getMinute(), 10);
+        buffer.put((byte) ':');
+        putDigits(sent.getSecond(), 10);
+        buffer.put((byte) '.');
+        putDigits(sent.getNano() / 1000000, 100);
+        buffer.put((byte) 'Z');
+        buffer.put((byte) '"');
+    }
+
+    private void putDigits(int value, int divisor) {
+        // Zero padded, divisor is the place value of the first digit
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        ensure(1);
+        buffer.put((byte) '"');
+        char previous = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // Worst case is a six byte unicode escape
+            ensure(6);
+            switch (c) {
+                case '\\':
+                case '"':
+                    buffer.put((byte) '\\');
+                    buffer.put((byte) c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        buffer.put((byte) '\\');
+                    }
+                    buffer.put((byte) c);
+                    break;
+                case '\b':
+                    buffer.put((byte) '\\').put((byte) 'b');
+                    break;
+                case '\t':
+                    buffer.put((byte) '\\').put((byte) 't');
+                    break;
+                case '\n':
+                    buffer.put((byte) '\\').put((byte) 'n');
+                    break;
+                case '\f':
+                    buffer.put((byte) '\\').put((byte) 'f');
+                    break;
+                case '\r':
+                    buffer.put((byte) '\\').put((byte) 'r');
+                    break;
+                default:
+                    if (c < 0x20 || (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100)) {
+                        buffer.put((byte) '\\').put((byte) 'u');
+                        buffer.put(HEX[(c >> 12) & 0xF]).put(HEX[(c >> 8) & 0xF]).put(HEX[(c >> 4) & 0xF]).put(HEX[c & 0xF]);
+                    } else if (c < 0x80) {
+                        buffer.put((byte) c);
+                    } else if (c < 0x800) {
+                        buffer.put((byte) (0xC0 | (c >> 6)));
+                        buffer.put((byte) (0x80 | (c & 0x3F)));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                        c = value.charAt(i);
+                    } else if (Character.isSurrogate(c)) {
+                        // Unpaired surrogate, String.getBytes replaces these with '?'
+                        buffer.put((byte) '?');
+                    } else {
+                        buffer.put((byte) (0xE0 | (c >> 12)));
+                        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                        buffer.put((byte) (0x80 | (c & 0x3F)));
+                    }
+            }
+            previous = c;
+        }
+        ensure(1);
+        buffer.put((byte) '"');
+    }
+}
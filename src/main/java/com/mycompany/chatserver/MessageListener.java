@@ -0,0 +1,8 @@
+package com.mycompany.chatserver;
+
+public interface MessageListener {
+
+    // Called after a new, edited or deleted message has been committed to the database.
+    // Edited and deleted messages carry the "<edited>" or "<deleted>" tag.
+    void messageChanged(ChatMessage message);
+}
@@ -0,0 +1,145 @@
+package com.mycompany.chatserver;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.json.JSONObject;
+
+public class MessageRoutes {
+
+    // Routes for posting, editing, deleting and searching chat messages and listing channels
+    private static final long POST_TIMEOUT_SECONDS = ChatConfig.getLong("chat.postTimeoutSeconds", 10);
+    private static final int MAX_SEARCH_RESULTS = ChatConfig.getInt("search.maxResults", 100);
+    private static final int MAX_SEARCH_OFFSET = ChatConfig.getInt("search.maxOffset", 1000);
+
+    private MessageRoutes() {
+    }
+
+    public static void postMessage(RequestContext context) throws Exception {
+        // Handle POST request (client sent new chat message)
+        JSONObject jsonObj = context.getBody();
+
+        String dateStr = jsonObj.getString("sent");
+        OffsetDateTime odt = OffsetDateTime.parse(dateStr);
+
+        LocalDateTime sent = odt.toLocalDateTime();
+        String userName = jsonObj.get("user").toString();
+        String message = jsonObj.getString("message");
+        String channel = jsonObj.getString("channel");
+
+        //Add message to database
+        ChatMessage newMessage = new ChatMessage(channel, sent, userName, message, "");
+        ChatDatabase db = ChatDatabase.getInstance();
+
+        //Respond only after the batch containing the message is committed
+        try {
+            db.submitMessage(newMessage).get(POST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            context.respondEmpty(200);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                throw new RequestException(503, "Server busy, try again later");
+            }
+            throw new RequestException(500, "Error saving message");
+        } catch (TimeoutException e) {
+            throw new RequestException(503, "Timed out saving message");
+        }
+    }
+
+    public static void editMessage(RequestContext context) throws Exception {
+        //Edit message with specified id
+        JSONObject requestBody = context.getBody();
+        String user = requestBody.getString("user");
+        long messageID = requestBody.getLong("messageid");
+        String message = requestBody.getString("message");
+
+        ChatDatabase.getInstance().editMessage(messageID, user, message);
+        context.respondEmpty(200);
+    }
+
+    public static void deleteMessage(RequestContext context) throws Exception {
+        //Delete message with specified id
+        JSONObject requestBody = context.getBody();
+        String user = requestBody.getString("user");
+        long messageID = requestBody.getLong("messageid");
+
+        ChatDatabase.getInstance().deleteMessage(messageID, user);
+        context.respondEmpty(200);
+    }
+
+    public static void searchMessages(RequestContext context) throws Exception {
+        // GET /chat?search=words&channel=name, optionally filtered by user and time range.
+        // Paged by offset, since results are ordered by relevance rather than by id.
+        String query = decode(context.getParam("search"));
+        String channel = context.getParam("channel");
+        if (channel == null || channel.isEmpty()) {
+            throw new RequestException(400, "Specify channel to search, e.g. ?search=words&channel=main");
+        }
+        String user = context.getParam("user") != null ? decode(context.getParam("user")) : null;
+        long from = parseTime(context.getParam("from"), Long.MIN_VALUE);
+        long to = parseTime(context.getParam("to"), Long.MAX_VALUE);
+        int limit = parseNumber(context.getParam("limit"), 20, 1, MAX_SEARCH_RESULTS);
+        int offset = parseNumber(context.getParam("cursor"), 0, 0, MAX_SEARCH_OFFSET);
+
+        ArrayList<ChatMessage> results = ChatDatabase.getInstance().searchMessages(channel, query, user, from, to, limit + 1, offset);
+        long nextCursor = -1;
+        if (results.size() > limit) {
+            results.remove(limit);
+            if (offset + limit <= MAX_SEARCH_OFFSET) {
+                nextCursor = offset + limit;
+            }
+        }
+
+        String encoding = ResponseCompression.negotiate(context.getHeader("Accept-Encoding"));
+        context.getResponseHeaders().add("Vary", "Accept-Encoding");
+        context.getResponseHeaders().add("Content-Type", "application/json");
+        context.responded(200);
+        MessageJsonWriter.sendPage(context.getExchange(), results, nextCursor, encoding);
+    }
+
+    private static String decode(String value) throws RequestException {
+        // Query parameters are passed on undecoded, e.g. search=hello+world
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, "Invalid escape in query: " + value);
+        }
+    }
+
+    private static long parseTime(String value, long defaultValue) throws RequestException {
+        // Same interpretation as If-Modified-Since
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return ZonedDateTime.parse(decode(value)).toLocalDateTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new RequestException(400, "Invalid time: " + value);
+        }
+    }
+
+    private static int parseNumber(String value, int defaultValue, int min, int max) throws RequestException {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(min, Math.min(Integer.parseInt(value), max));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Invalid number: " + value);
+        }
+    }
+
+    public static void listChannels(RequestContext context) throws Exception {
+        // List all different channels available
+        ArrayList<String> channels = ChatDatabase.getInstance().listChannels();
+        context.respond(200, channels.toString());
+    }
+}
@@ -0,0 +1,132 @@
+package com.mycompany.chatserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class MessageShard {
+
+    // One database file holding the messages of the channels hashed onto it, with its own
+    // writer connection, reader pool and message writer thread. Shard 0 is the main database
+    // file, which also keeps the users. Each shard numbers its messages from index << ID_BITS
+    // up, so a message id tells which shard it is in.
+    static final int ID_BITS = 40;
+
+    final int index;
+    final String url;
+    final ConnectionPool writePool;
+    final ConnectionPool readPool;
+    final MessageWriter writer;
+
+    MessageShard(int index, String url, ConnectionPool writePool, ConnectionPool readPool, MessageWriter writer) {
+        this.index = index;
+        this.url = url;
+        this.writePool = writePool;
+        this.readPool = readPool;
+        this.writer = writer;
+    }
+
+    public static int shardOf(String channel, int shardCount) {
+        // String.hashCode is the same on every JVM, so channels stay on their shard across restarts
+        return Math.floorMod(channel.hashCode(), shardCount);
+    }
+
+    public static int shardOfId(long messageId) {
+        return (int) (messageId >>> ID_BITS);
+    }
+
+    public static String fileUrl(String mainUrl, int index) {
+        // chat.db, chat-shard1.db, chat-shard2.db, ...
+        if (index == 0) {
+            return mainUrl;
+        }
+        if (mainUrl.endsWith(".db")) {
+            return mainUrl.substring(0, mainUrl.length() - 3) + "-shard" + index + ".db";
+        }
+        return mainUrl + "-shard" + index;
+    }
+
+    public static void prepare(Connection db, int index, int shardCount) throws SQLException {
+        // Brings the file up to the current schema and checks that it belongs to a layout
+        // of shardCount files. A new file, or an old single file, takes the given layout.
+        SchemaMigrations.migrate(db);
+
+        String stored = getSetting(db, "shardCount");
+        if (stored == null) {
+            if (shardCount > 1 && index == 0 && hasMessages(db)) {
+                throw new SQLException("Database has messages but no shard layout, split it with ShardTool before using "
+                        + shardCount + " shards");
+            }
+            setSetting(db, "shardCount", Integer.toString(shardCount));
+        } else if (Integer.parseInt(stored) != shardCount) {
+            throw new SQLException("Database is split into " + stored + " shards but " + shardCount
+                    + " are configured, use ShardTool to change the number of shards");
+        }
+
+        // New rows of an AUTOINCREMENT table get an id above the one in sqlite_sequence
+        long firstId = (long) index << ID_BITS;
+        try (PreparedStatement p = db.prepareStatement("UPDATE sqlite_sequence SET seq = ? WHERE name = 'Messages' AND seq < ?")) {
+            p.setLong(1, firstId);
+            p.setLong(2, firstId);
+            p.executeUpdate();
+        }
+        try (PreparedStatement p = db.prepareStatement("INSERT INTO sqlite_sequence(name, seq) SELECT 'Messages', ?"
+                + " WHERE NOT EXISTS (SELECT 1 FROM sqlite_sequence WHERE name = 'Messages')")) {
+            p.setLong(1, firstId);
+            p.executeUpdate();
+        }
+    }
+
+    public static int getShardCount(Connection db) throws SQLException {
+        // Layout of an existing main database file, 1 if it has never been sharded
+        try (Statement s = db.createStatement();
+                ResultSet r = s.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'Settings'")) {
+            if (!r.next()) {
+                return 1;
+            }
+        }
+        String stored = getSetting(db, "shardCount");
+        return stored != null ? Integer.parseInt(stored) : 1;
+    }
+
+    private static boolean hasMessages(Connection db) throws SQLException {
+        try (Statement s = db.createStatement();
+                ResultSet r = s.executeQuery("SELECT 1 FROM Messages LIMIT 1")) {
+            return r.next();
+        }
+    }
+
+    private static String getSetting(Connection db, String name) throws SQLException {
+        try (PreparedStatement p = db.prepareStatement("SELECT value FROM Settings WHERE name = ?")) {
+            p.setString(1, name);
+            try (ResultSet r = p.executeQuery()) {
+                return r.next() ? r.getString(1) : null;
+            }
+        }
+    }
+
+    private static void setSetting(Connection db, String name, String value) throws SQLException {
+        try (PreparedStatement p = db.prepareStatement("INSERT OR REPLACE INTO Settings(name, value) VALUES (?, ?)")) {
+            p.setString(1, name);
+            p.setString(2, value);
+            p.executeUpdate();
+        }
+    }
+
+    void close() {
+        // Stop the writer first so queued messages are committed before the pools close
+        writer.stop();
+        closePools();
+    }
+
+    void closePools() {
+        readPool.close();
+        writePool.close();
+    }
+
+    String getStats() {
+        return readPool.getStats() + "\n" + writePool.getStats() + "\n" + writer.getStats();
+    }
+}
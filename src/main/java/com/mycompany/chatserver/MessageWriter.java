@@ -0,0 +1,162 @@
+package com.mycompany.chatserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MessageWriter implements Runnable {
+
+    // Single writer thread that drains posted messages from a queue and commits
+    // each batch in one transaction, so a burst of posts costs a few fsyncs
+    private final ChatDatabase database;
+    private final BlockingQueue<PendingMessage> queue;
+    private final int batchSize;
+    private final long maxLingerNanos;
+    private final String name;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private static class PendingMessage {
+
+        final ChatMessage message;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingMessage(ChatMessage message) {
+            this.message = message;
+        }
+    }
+
+    public MessageWriter(ChatDatabase database, String name, int queueSize, int batchSize, long maxLingerMillis) {
+        this.database = database;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLingerMillis));
+        this.name = name;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public CompletableFuture<Void> submit(ChatMessage message) {
+        PendingMessage pending = new PendingMessage(message);
+        // Checked and queued under the lock stop() takes, so nothing is queued after the
+        // writer thread has seen running turn false
+        boolean queued;
+        synchronized (this) {
+            queued = running && queue.offer(pending);
+        }
+        if (!queued) {
+            pending.done.completeExceptionally(new RejectedExecutionException(running ? "Message queue is full" : "Message writer stopped"));
+        }
+        return pending.done;
+    }
+
+    @Override
+    public void run() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collectBatch(batch);
+                commit(batch);
+            } catch (InterruptedException e) {
+                // Interrupted by shutdown, loop drains whatever is left in the queue
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void collectBatch(List<PendingMessage> batch) {
+        // Take everything already waiting, then linger a while for more messages
+        queue.drainTo(batch, batchSize - batch.size());
+        long deadline = System.nanoTime() + maxLingerNanos;
+        while (running && batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+                batch.add(next);
+            } catch (InterruptedException e) {
+                // Shutting down, commit what has been collected so far
+                running = false;
+                break;
+            }
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    private void commit(List<PendingMessage> batch) {
+        List<ChatMessage> toInsert = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            toInsert.add(pending.message);
+        }
+        try {
+            database.insertMessages(toInsert);
+            batches.increment();
+            messages.add(batch.size());
+            for (PendingMessage pending : batch) {
+                pending.done.complete(null);
+            }
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            System.out.println("Error inserting message batch into database.");
+            failures.increment();
+            for (PendingMessage pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            running = false;
+        }
+        thread.interrupt();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Left over only if the writer did not finish in time, fail them instead of leaving them waiting
+        List<PendingMessage> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (PendingMessage pending : left) {
+            pending.done.completeExceptionally(new RejectedExecutionException("Message writer stopped"));
+        }
+    }
+
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    public String getStats() {
+        return name + ": queued=" + queue.size()
+                + ", batches=" + batches.sum()
+                + ", messages=" + messages.sum()
+                + ", failedBatches=" + failures.sum();
+    }
+}
@@ -0,0 +1,145 @@
+package com.mycompany.chatserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+
+    // Counters, latency histograms and gauges, exported in the Prometheus text format by
+    // MetricsHandler. Series are found with lock-free map reads and only created on first
+    // use, so recording never waits for another thread.
+    private static final String[] BUCKET_SECONDS = {
+        "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+
+    private static final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+
+    private static class Family {
+
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Object get(String labels, Function<String, Object> create) {
+            Object metric = series.get(labels);
+            return metric != null ? metric : series.computeIfAbsent(labels, create);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        return family != null ? family : families.computeIfAbsent(name, n -> new Family(n, help, type));
+    }
+
+    public static LatencyHistogram histogram(String name, String help, String labels) {
+        return (LatencyHistogram) family(name, help, "histogram").get(labels, l -> new LatencyHistogram());
+    }
+
+    public static void increment(String name, String help, String labels) {
+        ((LongAdder) family(name, help, "counter").get(labels, l -> new LongAdder())).increment();
+    }
+
+    public static void gauge(String name, String help, String labels, LongSupplier value) {
+        family(name, help, "gauge").series.put(labels, value);
+    }
+
+    public static void recordDatabaseCall(String method, long startNanos) {
+        histogram("chat_db_call_duration_seconds", "Time spent in ChatDatabase methods",
+                "method=\"" + method + "\"").recordSince(startNanos);
+    }
+
+    public static void recordRequest(String handler, String route, String method, int status, long startNanos) {
+        // Every label value makes new series that are kept forever, so client input such as
+        // the method is mapped to a fixed set of values first
+        String labels = "handler=\"" + handler + "\",route=\"" + escape(route) + "\",method=\"" + methodLabel(method) + "\"";
+        histogram("chat_http_request_duration_seconds", "Time to handle HTTP requests", labels).recordSince(startNanos);
+        increment("chat_http_responses_total", "HTTP responses by status code", labels + ",status=\"" + status + "\"");
+    }
+
+    static String methodLabel(String method) {
+        switch (method) {
+            case "GET":
+            case "POST":
+            case "PUT":
+            case "DELETE":
+                return method;
+            default:
+                return "OTHER";
+        }
+    }
+
+    public static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public static String export() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : new TreeMap<>(families).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : new TreeMap<>(family.series).entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    writeHistogram(out, family.name, labels, (LatencyHistogram) metric);
+                } else if (metric instanceof LongAdder) {
+                    writeSample(out, family.name, labels, Long.toString(((LongAdder) metric).sum()));
+                } else {
+                    writeSample(out, family.name, labels, Long.toString(((LongSupplier) metric).getAsLong()));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        // Read the count first, buckets recorded after it may make a bucket exceed it slightly
+        long count = histogram.getCount();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (String seconds : BUCKET_SECONDS) {
+            long bucket = Math.min(count, histogram.countAtOrBelow((long) (Double.parseDouble(seconds) * 1e9)));
+            writeSample(out, name + "_bucket", prefix + "le=\"" + seconds + "\"", Long.toString(bucket));
+        }
+        writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", Long.toString(count));
+        writeSample(out, name + "_sum", labels, Double.toString(histogram.getSum() / 1e9));
+        writeSample(out, name + "_count", labels, Long.toString(count));
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    public static String getSummary() {
+        // Request latency percentiles for /status
+        StringBuilder out = new StringBuilder("request latency (ms, p50/p99/max):");
+        Family requests = families.get("chat_http_request_duration_seconds");
+        if (requests != null) {
+            for (Map.Entry<String, Object> entry : new TreeMap<>(requests.series).entrySet()) {
+                LatencyHistogram h = (LatencyHistogram) entry.getValue();
+                out.append("\n  ").append(entry.getKey()).append(" count=").append(h.getCount())
+                        .append(' ').append(h.valueAtPercentile(50) / 1000000.0)
+                        .append('/').append(h.valueAtPercentile(99) / 1000000.0)
+                        .append('/').append(h.valueAtPercentile(100) / 1000000.0);
+            }
+        }
+        return out.toString();
+    }
+}
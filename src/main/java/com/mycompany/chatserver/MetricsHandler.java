@@ -0,0 +1,43 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+
+public class MetricsHandler implements HttpHandler {
+
+    // GET /metrics in the Prometheus text format, only for users with the admin role
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String response;
+        int code = 200;
+
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                code = 400;
+                response = "Not supported";
+            } else if (!ChatDatabase.getInstance().isAdmin(exchange.getPrincipal().getUsername())) {
+                code = 403;
+                response = "Not authorized: admin rights required";
+            } else {
+                response = Metrics.export();
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            code = 500;
+            response = "Database error";
+        }
+
+        byte[] bytes = response.getBytes("UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.flush();
+        os.close();
+        exchange.close();
+    }
+}
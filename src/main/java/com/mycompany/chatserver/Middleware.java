@@ -0,0 +1,7 @@
+package com.mycompany.chatserver;
+
+public interface Middleware {
+
+    // Runs around every routed request, call next.handle(context) to continue to the route
+    void handle(RequestContext context, Route next) throws Exception;
+}
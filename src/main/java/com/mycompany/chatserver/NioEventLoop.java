@@ -0,0 +1,122 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class NioEventLoop implements Runnable {
+
+    // A selector thread. Channels registered here are only touched by this thread,
+    // other threads hand work to it with execute().
+    public interface Handler {
+
+        void ready(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final CopyOnWriteArrayList<Runnable> tickers = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+    private long lastTick = System.currentTimeMillis();
+
+    public NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    public void addTicker(Runnable ticker) {
+        // Runs about once a second on the loop thread, e.g. for idle timeouts
+        tickers.add(ticker);
+    }
+
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.ready(key);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    handler.close();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    handler.close();
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runSafely(task);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastTick >= 1000) {
+                lastTick = now;
+                for (Runnable ticker : tickers) {
+                    runSafely(ticker);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,451 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Headers;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLSession;
+
+public class NioHttpConnection implements NioEventLoop.Handler {
+
+    // One keep-alive HTTP/1.1 connection. Requests are parsed on the event loop thread and
+    // handed to the transport one at a time, pipelined requests wait in the input buffer
+    // until the response before them is complete, so responses go out in request order.
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final NioHttpTransport transport;
+    private final NioEventLoop loop;
+    private final TlsConnection tls;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private SelectionKey key;
+
+    // Only used on the event loop thread
+    private byte[] input = new byte[1024];
+    private int inputLength = 0;
+    private NioHttpExchange exchange;
+    private boolean continueSent = false;
+    private boolean closeAfterFlush = false;
+    private long lastActivity = System.currentTimeMillis();
+
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Condition drained = drainLock.newCondition();
+    private volatile boolean closed = false;
+
+    NioHttpConnection(NioHttpTransport transport, NioEventLoop loop, TlsConnection tls) throws IOException {
+        this.transport = transport;
+        this.loop = loop;
+        this.tls = tls;
+        this.remoteAddress = (InetSocketAddress) tls.getChannel().getRemoteAddress();
+        this.localAddress = (InetSocketAddress) tls.getChannel().getLocalAddress();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    SSLSession getSSLSession() {
+        return tls.getEngine().getSession();
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            lastActivity = System.currentTimeMillis();
+            if (!tls.read(this::onData)) {
+                close();
+                return;
+            }
+            processInput();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flushQueue();
+        } else {
+            updateInterest();
+        }
+    }
+
+    private void onData(ByteBuffer data) {
+        if (inputLength + data.remaining() > input.length) {
+            input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + data.remaining()));
+        }
+        int length = data.remaining();
+        data.get(input, inputLength, length);
+        inputLength += length;
+    }
+
+    private void processInput() {
+        while (exchange == null && !closeAfterFlush && !closed && inputLength > 0) {
+            if (!parseRequest()) {
+                return;
+            }
+        }
+    }
+
+    private boolean parseRequest() {
+        // Starts the next request if all of it has arrived, returns false otherwise
+        int headerEnd = indexOfHeaderEnd();
+        if (headerEnd < 0) {
+            if (inputLength > transport.maxHeaderSize) {
+                reject(431);
+            }
+            return false;
+        }
+        if (headerEnd > transport.maxHeaderSize) {
+            reject(431);
+            return false;
+        }
+
+        String[] lines = new String(input, 0, headerEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            reject(400);
+            return false;
+        }
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                reject(400);
+                return false;
+            }
+            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+
+        int[] bodyEnd = new int[1];
+        byte[] body;
+        String transferEncoding = headers.getFirst("Transfer-Encoding");
+        if (transferEncoding != null) {
+            if (!transferEncoding.equalsIgnoreCase("chunked")) {
+                reject(501);
+                return false;
+            }
+            try {
+                body = decodeChunked(headerEnd, bodyEnd);
+            } catch (IllegalArgumentException e) {
+                reject(400);
+                return false;
+            } catch (IllegalStateException e) {
+                reject(413);
+                return false;
+            }
+        } else {
+            long contentLength;
+            try {
+                String header = headers.getFirst("Content-Length");
+                contentLength = header == null ? 0 : Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                reject(400);
+                return false;
+            }
+            if (contentLength < 0) {
+                reject(400);
+                return false;
+            }
+            if (contentLength > RequestBodyReader.MAX_BODY_SIZE) {
+                reject(413);
+                return false;
+            }
+            if (inputLength - headerEnd < contentLength) {
+                body = null;
+            } else {
+                body = Arrays.copyOfRange(input, headerEnd, headerEnd + (int) contentLength);
+                bodyEnd[0] = headerEnd + (int) contentLength;
+            }
+        }
+        if (body == null) {
+            // Body still on its way, tell a client waiting for permission to send it
+            if (!continueSent && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                continueSent = true;
+                queue(CONTINUE);
+            }
+            return false;
+        }
+
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch (Exception e) {
+            reject(400);
+            return false;
+        }
+        String connection = headers.getFirst("Connection");
+        boolean keepAlive = requestLine[2].equals("HTTP/1.1")
+                ? connection == null || !connection.toLowerCase().contains("close")
+                : connection != null && connection.toLowerCase().contains("keep-alive");
+
+        consume(bodyEnd[0]);
+        continueSent = false;
+        NioHttpContext context = transport.findContext(uri.getPath() == null ? "/" : uri.getPath());
+        if (context == null) {
+            queue(NioHttpExchange.statusOnly(404, !keepAlive));
+            closeAfterFlush = !keepAlive;
+            return true;
+        }
+        exchange = new NioHttpExchange(this, context, requestLine[0].toUpperCase(), uri, requestLine[2], headers, body, keepAlive);
+        transport.dispatch(exchange);
+        return true;
+    }
+
+    private int indexOfHeaderEnd() {
+        // Index just after the empty line ending the headers, -1 if it hasn't arrived
+        for (int i = 3; i < inputLength; i++) {
+            if (input[i] == '\n' && input[i - 1] == '\r' && input[i - 2] == '\n' && input[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfLineEnd(int from) {
+        for (int i = from + 1; i < inputLength; i++) {
+            if (input[i] == '\n' && input[i - 1] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] decodeChunked(int position, int[] end) {
+        // Returns null until the last chunk has arrived. Throws IllegalArgumentException for a
+        // malformed body and IllegalStateException for one over the size limit.
+        byte[] body = new byte[0];
+        int length = 0;
+        while (true) {
+            int lineEnd = indexOfLineEnd(position);
+            if (lineEnd < 0) {
+                return null;
+            }
+            String sizeLine = new String(input, position, lineEnd - 2 - position, StandardCharsets.ISO_8859_1);
+            int extension = sizeLine.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid chunk size");
+            }
+            if (size < 0) {
+                throw new IllegalArgumentException("Invalid chunk size");
+            }
+            if ((long) length + size > RequestBodyReader.MAX_BODY_SIZE) {
+                throw new IllegalStateException("Body too large");
+            }
+            position = lineEnd;
+            if (size == 0) {
+                // Skip trailers up to the empty line
+                while (true) {
+                    lineEnd = indexOfLineEnd(position);
+                    if (lineEnd < 0) {
+                        return null;
+                    }
+                    boolean empty = lineEnd - position == 2;
+                    position = lineEnd;
+                    if (empty) {
+                        end[0] = position;
+                        return Arrays.copyOf(body, length);
+                    }
+                }
+            }
+            if (inputLength - position < size + 2) {
+                return null;
+            }
+            if (input[position + size] != '\r' || input[position + size + 1] != '\n') {
+                throw new IllegalArgumentException("Invalid chunk");
+            }
+            if (length + size > body.length) {
+                body = Arrays.copyOf(body, Math.max(body.length * 2, length + size));
+            }
+            System.arraycopy(input, position, body, length, size);
+            length += size;
+            position += size + 2;
+        }
+    }
+
+    private void consume(int bytes) {
+        System.arraycopy(input, bytes, input, 0, inputLength - bytes);
+        inputLength -= bytes;
+        if (inputLength == 0 && input.length > 1024) {
+            // Don't keep a large buffer on an idle connection
+            input = new byte[1024];
+        }
+    }
+
+    private void reject(int code) {
+        queue(NioHttpExchange.statusOnly(code, true));
+        closeAfterFlush = true;
+        inputLength = 0;
+    }
+
+    private void queue(byte[] data) {
+        queuedBytes.addAndGet(data.length);
+        writeQueue.add(ByteBuffer.wrap(data));
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushQueue);
+        }
+    }
+
+    void send(byte[] data) throws IOException {
+        // Called by handlers on any thread. Waits while too much is queued for a slow client,
+        // unless called on the event loop, which has to keep running to drain the queue.
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        queue(data);
+        if (queuedBytes.get() > transport.maxQueuedBytes && !loop.inEventLoop()) {
+            drainLock.lock();
+            try {
+                while (queuedBytes.get() > transport.maxQueuedBytes / 2 && !closed) {
+                    drained.await(1, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing response");
+            } finally {
+                drainLock.unlock();
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    void finish(NioHttpExchange finished, byte[] last, boolean close) {
+        // Response complete: the connection can go on with the next request
+        if (last.length > 0 && !closed) {
+            queue(last);
+        }
+        loop.execute(() -> {
+            if (exchange != finished) {
+                return;
+            }
+            exchange = null;
+            transport.exchangeDone();
+            lastActivity = System.currentTimeMillis();
+            if (close || transport.isStopping()) {
+                closeAfterFlush = true;
+            }
+            flushQueue();
+            if (!closed) {
+                processInput();
+                updateInterest();
+            }
+        });
+    }
+
+    void abort(NioHttpExchange aborted) {
+        loop.execute(() -> {
+            if (exchange == aborted) {
+                close();
+            }
+        });
+    }
+
+    private void flushQueue() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.peek()) != null) {
+                int before = buffer.remaining();
+                boolean written = tls.write(buffer);
+                queuedBytes.addAndGet(buffer.remaining() - before);
+                if (!written) {
+                    break;
+                }
+                writeQueue.poll();
+            }
+            tls.flush();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (queuedBytes.get() <= transport.maxQueuedBytes / 2) {
+            signalDrained();
+        }
+        if (closeAfterFlush && exchange == null && writeQueue.isEmpty() && !tls.hasPendingOutput()) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void signalDrained() {
+        drainLock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private void updateInterest() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        boolean pending = tls.hasPendingOutput() || !writeQueue.isEmpty();
+        // Stop reading while a request is running and enough pipelined input is waiting
+        boolean read = exchange == null || inputLength < transport.maxHeaderSize + RequestBodyReader.MAX_BODY_SIZE;
+        key.interestOps((read ? SelectionKey.OP_READ : 0) | (pending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    boolean isIdle() {
+        // Called on the connection's event loop
+        return exchange == null;
+    }
+
+    void tick(long now) {
+        // Idle keep-alive connections and requests that arrive too slowly are closed,
+        // a request being handled (e.g. a long poll) may take as long as it needs
+        if (exchange != null) {
+            return;
+        }
+        long timeout = inputLength > 0 ? transport.requestTimeoutMillis : transport.idleTimeoutMillis;
+        if (now - lastActivity > timeout) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (exchange != null) {
+            // A later finish() of the exchange is ignored
+            exchange = null;
+            transport.exchangeDone();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        tls.close();
+        writeQueue.clear();
+        queuedBytes.set(0);
+        signalDrained();
+        transport.connectionClosed(this, loop);
+    }
+}
@@ -0,0 +1,69 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class NioHttpContext extends HttpContext {
+
+    // A handler with its filters and authenticator, like the contexts of HttpServer
+    private final String path;
+    private volatile HttpHandler handler;
+    private volatile Authenticator authenticator;
+    private final List<Filter> filters = new CopyOnWriteArrayList<>();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    NioHttpContext(String path, HttpHandler handler) {
+        this.path = path;
+        this.handler = handler;
+    }
+
+    @Override
+    public HttpHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public void setHandler(HttpHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public HttpServer getServer() {
+        // Not backed by an HttpServer
+        return null;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public List<Filter> getFilters() {
+        return filters;
+    }
+
+    @Override
+    public Authenticator setAuthenticator(Authenticator auth) {
+        Authenticator previous = authenticator;
+        authenticator = auth;
+        return previous;
+    }
+
+    @Override
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+}
@@ -0,0 +1,316 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpsExchange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLSession;
+
+public class NioHttpExchange extends HttpsExchange {
+
+    // One request on an NioHttpConnection. The whole request body has been read before the
+    // handler runs, the response is queued on the connection as the handler writes it and
+    // may be written from any thread, also after the handler has returned.
+    private final NioHttpConnection connection;
+    private final NioHttpContext context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final boolean keepAlive;
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private final ResponseStream response = new ResponseStream();
+    private volatile int responseCode = -1;
+    private volatile HttpPrincipal principal;
+
+    NioHttpExchange(NioHttpConnection connection, NioHttpContext context, String method, URI uri, String protocol,
+            Headers requestHeaders, byte[] body, boolean keepAlive) {
+        this.connection = connection;
+        this.context = context;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.responseBody = response;
+        this.keepAlive = keepAlive;
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Status " + code;
+        }
+    }
+
+    static byte[] statusOnly(int code, boolean close) {
+        // Response without a body, for requests rejected before they reach a handler
+        String head = "HTTP/1.1 " + code + " " + reason(code) + "\r\nDate: " + date()
+                + "\r\nContent-Length: 0\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n";
+        return head.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String date() {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            requestBody.close();
+            if (responseCode == -1) {
+                // Nothing was sent, the connection can't be reused
+                connection.abort(this);
+            } else {
+                response.close();
+            }
+        } catch (IOException e) {
+            connection.abort(this);
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int code, long responseLength) throws IOException {
+        // Same meaning of the length as with HttpServer: 0 for a chunked body, -1 for none
+        if (responseCode != -1) {
+            throw new IOException("Response headers already sent");
+        }
+        responseCode = code;
+        boolean head = method.equals("HEAD");
+        boolean noBody = code < 200 || code == 204 || code == 304;
+
+        StringBuilder out = new StringBuilder(256);
+        out.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+        out.append("Date: ").append(date()).append("\r\n");
+        if (noBody) {
+            response.remaining = 0;
+        } else if (responseLength > 0) {
+            out.append("Content-Length: ").append(responseLength).append("\r\n");
+            response.remaining = head ? 0 : responseLength;
+        } else if (responseLength == 0) {
+            if (head) {
+                response.remaining = 0;
+            } else {
+                out.append("Transfer-Encoding: chunked\r\n");
+                response.chunked = true;
+            }
+        } else {
+            out.append("Content-Length: 0\r\n");
+            response.remaining = 0;
+        }
+        if (!keepAlive) {
+            out.append("Connection: close\r\n");
+        }
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                out.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        out.append("\r\n");
+        // Sent together with the first part of the body
+        response.head = out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+
+    void setPrincipal(HttpPrincipal principal) {
+        this.principal = principal;
+    }
+
+    @Override
+    public SSLSession getSSLSession() {
+        return connection.getSSLSession();
+    }
+
+    private class ResponseStream extends OutputStream {
+
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        byte[] head;
+        boolean chunked;
+        long remaining;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Response body closed");
+            }
+            if (responseCode == -1) {
+                throw new IOException("Response headers not sent");
+            }
+            if (len == 0) {
+                return;
+            }
+            if (!chunked && len > remaining) {
+                throw new IOException("More bytes than the response length");
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(len + (head != null ? head.length : 0) + 16);
+            takeHead(out);
+            if (chunked) {
+                out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+                out.write('\r');
+                out.write('\n');
+                out.write(b, off, len);
+                out.write('\r');
+                out.write('\n');
+            } else {
+                out.write(b, off, len);
+                remaining -= len;
+            }
+            connection.send(out.toByteArray());
+        }
+
+        private void takeHead(ByteArrayOutputStream out) {
+            if (head != null) {
+                out.write(head, 0, head.length);
+                head = null;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            // The body is queued as it is written, only headers may still be waiting
+            if (head != null && !closed) {
+                connection.send(head);
+                head = null;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed || responseCode == -1) {
+                return;
+            }
+            closed = true;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+            takeHead(out);
+            if (chunked) {
+                out.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+            }
+            // A body shorter than its Content-Length can only be ended by closing the connection
+            connection.finish(NioHttpExchange.this, out.toByteArray(), !keepAlive || remaining > 0);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+public class NioHttpTransport implements HttpTransport {
+
+    // HTTP/1.1 over TLS on selector event loops. Connections cost no thread while they wait
+    // between requests, only the handlers run on the executor. Network buffers are direct
+    // and pooled, and borrowed only while a connection has data in flight.
+    final int maxHeaderSize;
+    final long maxQueuedBytes;
+    final long idleTimeoutMillis;
+    final long requestTimeoutMillis;
+
+    private final SSLContext sslContext;
+    private final SSLParameters sslParameters;
+    private final BufferPool packetBuffers;
+    private final BufferPool appBuffers;
+    private final NioServer server;
+    private final List<NioHttpContext> contexts = new CopyOnWriteArrayList<>();
+    private final Map<NioEventLoop, HashSet<NioHttpConnection>> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private volatile boolean stopping;
+    private final LongAdder requests = new LongAdder();
+    private volatile Executor executor;
+
+    public NioHttpTransport(int port, SSLContext sslContext, SSLParameters sslParameters) throws IOException {
+        this.sslContext = sslContext;
+        this.sslParameters = sslParameters;
+
+        maxHeaderSize = ChatConfig.getInt("http.nio.maxHeaderSize", 16384);
+        maxQueuedBytes = ChatConfig.getLong("http.nio.maxQueuedBytes", 1048576);
+        idleTimeoutMillis = ChatConfig.getLong("http.nio.idleTimeoutSeconds", 60) * 1000;
+        requestTimeoutMillis = ChatConfig.getLong("http.nio.requestTimeoutSeconds", 10) * 1000;
+
+        SSLEngine probe = sslContext.createSSLEngine();
+        int bufferPoolSize = ChatConfig.getInt("http.nio.bufferPoolSize", 1024);
+        packetBuffers = new BufferPool(probe.getSession().getPacketBufferSize(), bufferPoolSize);
+        appBuffers = new BufferPool(probe.getSession().getApplicationBufferSize(), bufferPoolSize);
+
+        server = new NioServer("http", port, ChatConfig.getInt("http.nio.eventLoops", Runtime.getRuntime().availableProcessors()), this::accept);
+        for (NioEventLoop loop : server.getEventLoops()) {
+            HashSet<NioHttpConnection> loopConnections = new HashSet<>();
+            connections.put(loop, loopConnections);
+            loop.addTicker(() -> {
+                long now = System.currentTimeMillis();
+                for (NioHttpConnection connection : loopConnections.toArray(new NioHttpConnection[0])) {
+                    connection.tick(now);
+                }
+            });
+        }
+        Metrics.gauge("chat_http_connections", "Open HTTP connections", "", connectionCount::get);
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        for (NioHttpContext context : contexts) {
+            if (context.getPath().equals(path)) {
+                throw new IllegalArgumentException("Context already exists: " + path);
+            }
+        }
+        NioHttpContext context = new NioHttpContext(path, handler);
+        contexts.add(context);
+        return context;
+    }
+
+    NioHttpContext findContext(String path) {
+        // Longest matching prefix, as with HttpServer
+        NioHttpContext found = null;
+        for (NioHttpContext context : contexts) {
+            if (path.startsWith(context.getPath()) && (found == null || context.getPath().length() > found.getPath().length())) {
+                found = context;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void start() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool();
+        }
+        server.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        // As with HttpServer: no new connections or exchanges, the running exchanges get up to
+        // delaySeconds to complete and then every connection is closed
+        stopping = true;
+        server.stopAccepting();
+        for (NioEventLoop loop : server.getEventLoops()) {
+            loop.execute(() -> {
+                for (NioHttpConnection connection : connections.get(loop).toArray(new NioHttpConnection[0])) {
+                    if (connection.isIdle()) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+        long deadline = System.currentTimeMillis() + delaySeconds * 1000L;
+        while (activeExchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        server.stop();
+    }
+
+    boolean isStopping() {
+        return stopping;
+    }
+
+    private void accept(SocketChannel channel, NioEventLoop loop) throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(sslParameters);
+
+        NioHttpConnection connection = new NioHttpConnection(this, loop, new TlsConnection(channel, engine, packetBuffers, appBuffers));
+        connection.setKey(loop.register(channel, SelectionKey.OP_READ, connection));
+        connections.get(loop).add(connection);
+        connectionCount.incrementAndGet();
+    }
+
+    void connectionClosed(NioHttpConnection connection, NioEventLoop loop) {
+        // Called on the connection's event loop
+        if (connections.get(loop).remove(connection)) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    void dispatch(NioHttpExchange exchange) {
+        // Counted until the connection is done with the exchange, see exchangeDone
+        activeExchanges.incrementAndGet();
+        if (stopping) {
+            exchange.close();
+            return;
+        }
+        requests.increment();
+        try {
+            executor.execute(() -> handle(exchange));
+        } catch (RejectedExecutionException e) {
+            exchange.close();
+        }
+    }
+
+    void exchangeDone() {
+        // Called on the connection's event loop, once for every dispatched exchange
+        activeExchanges.decrementAndGet();
+    }
+
+    private static void handle(NioHttpExchange exchange) {
+        // Filters first, then the authenticator and the handler, in the same order as HttpServer
+        NioHttpContext context = (NioHttpContext) exchange.getHttpContext();
+        HttpHandler handler = context.getHandler();
+        Authenticator authenticator = context.getAuthenticator();
+        HttpHandler authenticated = authenticator == null ? handler : e -> authenticate(authenticator, handler, exchange);
+        try {
+            new Filter.Chain(context.getFilters(), authenticated).doFilter(exchange);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("http: error handling " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e);
+            exchange.close();
+        }
+    }
+
+    private static void authenticate(Authenticator authenticator, HttpHandler handler, NioHttpExchange exchange) throws IOException {
+        Authenticator.Result result = authenticator.authenticate(exchange);
+        if (result instanceof Authenticator.Success) {
+            exchange.setPrincipal(((Authenticator.Success) result).getPrincipal());
+            handler.handle(exchange);
+        } else {
+            int code = result instanceof Authenticator.Retry
+                    ? ((Authenticator.Retry) result).getResponseCode()
+                    : ((Authenticator.Failure) result).getResponseCode();
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        }
+    }
+
+    @Override
+    public String getStats() {
+        return "http: nio engine connections=" + connectionCount.get() + " active=" + activeExchanges.get()
+                + " requests=" + requests.sum()
+                + " pooled buffers=" + packetBuffers.getPooledCount() + "/" + appBuffers.getPooledCount();
+    }
+}
@@ -0,0 +1,91 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class NioServer implements Runnable {
+
+    // Accepts connections on one thread and spreads them over a few event loops
+    public interface ConnectionFactory {
+
+        void accept(SocketChannel channel, NioEventLoop loop) throws IOException;
+    }
+
+    private final String name;
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] loops;
+    private final ConnectionFactory factory;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public NioServer(String name, int port, int eventLoops, ConnectionFactory factory) throws IOException {
+        this.name = name;
+        this.factory = factory;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), 1024);
+        this.loops = new NioEventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(name + "-loop-" + i);
+        }
+        this.acceptor = new Thread(this, name + "-acceptor");
+        this.acceptor.setDaemon(true);
+    }
+
+    public void start() {
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        acceptor.start();
+    }
+
+    public NioEventLoop[] getEventLoops() {
+        return loops;
+    }
+
+    @Override
+    public void run() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                NioEventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute(() -> {
+                    try {
+                        factory.accept(channel, loop);
+                    } catch (IOException e) {
+                        try {
+                            channel.close();
+                        } catch (IOException ex) {
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println(name + ": error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void stopAccepting() {
+        // Open connections are left to the event loops
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public void stop() {
+        stopAccepting();
+        for (NioEventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+}
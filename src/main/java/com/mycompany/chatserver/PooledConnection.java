@@ -0,0 +1,72 @@
+package com.mycompany.chatserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final int statementCacheSize;
+    // Prepared statements are kept per connection and reused for the same SQL string.
+    // A borrowed connection is only used by one thread, so the cache needs no locking.
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    long borrowedAt;
+    Throwable borrowSite;
+    boolean leakReported;
+
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statementCacheSize = statementCacheSize;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement p = statements.get(sql);
+        if (p != null) {
+            p.clearParameters();
+            return p;
+        }
+        p = connection.prepareStatement(sql);
+        statements.put(sql, p);
+
+        // Close least recently used statements if the cache grows too large
+        if (statements.size() > statementCacheSize) {
+            Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+            PreparedStatement eldest = it.next().getValue();
+            it.remove();
+            eldest.close();
+        }
+        return p;
+    }
+
+    void closeQuietly() {
+        for (PreparedStatement p : statements.values()) {
+            try {
+                p.close();
+            } catch (SQLException e) {
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+        }
+    }
+
+    @Override
+    public void close() {
+        // Return connection to the pool instead of closing it
+        pool.release(this);
+    }
+}
@@ -0,0 +1,65 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class RateLimitFilter extends Filter {
+
+    // Runs before the authenticator and the handler, so rejected requests never reach a
+    // password hash or the database
+    private final RequestLimits limits;
+    private final boolean countInFlight;
+
+    public RateLimitFilter(RequestLimits limits, boolean countInFlight) {
+        // Event streams keep their thread for as long as they are open and have their own
+        // limit, so they are left out of the in-flight count
+        this.limits = limits;
+        this.countInFlight = countInFlight;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String address = exchange.getRemoteAddress().getAddress().getHostAddress();
+        RequestLimits.Budget budget = RequestLimits.budgetOf(exchange.getRequestMethod(), exchange.getHttpContext().getPath());
+
+        long wait = limits.tryAcquireAddress(address, budget);
+        if (wait > 0) {
+            RequestLimits.setRetryAfter(exchange.getResponseHeaders(), wait);
+            reject(exchange, 429, "Too many requests");
+            return;
+        }
+
+        if (!countInFlight) {
+            chain.doFilter(exchange);
+            return;
+        }
+        if (!limits.tryEnter()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            reject(exchange, 503, "Server busy, try again later");
+            return;
+        }
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            limits.exit();
+        }
+    }
+
+    private static void reject(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.flush();
+        os.close();
+        exchange.close();
+    }
+
+    @Override
+    public String description() {
+        return "Per-address rate limits and in-flight request limit";
+    }
+}
@@ -0,0 +1,64 @@
+package com.mycompany.chatserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiter {
+
+    // One request budget (e.g. writes) with a token bucket per key, such as a username or
+    // remote address. Buckets are made on first use and dropped again once they have refilled.
+    private final String name;
+    private final long intervalNanos;
+    private final int burst;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+
+    public RateLimiter(String name, int perMinute, int burst, int maxKeys) {
+        this.name = name;
+        this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / Math.max(1, perMinute);
+        this.burst = burst;
+        this.maxKeys = maxKeys;
+    }
+
+    public long tryAcquire(String key) {
+        // Returns 0 if the request may go ahead, otherwise nanoseconds until it would be allowed
+        long now = System.nanoTime();
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                sweep(now);
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(intervalNanos, burst, now));
+        }
+
+        long wait = bucket.tryAcquire(now);
+        if (wait == 0) {
+            allowed.incrementAndGet();
+        } else {
+            limited.incrementAndGet();
+            Metrics.increment("chat_rate_limited_requests_total", "Requests refused by a rate limit", "limit=\"" + name + "\"");
+        }
+        return wait;
+    }
+
+    private void sweep(long now) {
+        // Only one thread cleans up at a time, the others carry on
+        if (sweeping.compareAndSet(false, true)) {
+            try {
+                buckets.values().removeIf(bucket -> bucket.isFull(now));
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    public String getStats() {
+        return "rate-limit " + name + ": keys=" + buckets.size() + " allowed=" + allowed.get()
+                + " limited=" + limited.get();
+    }
+}
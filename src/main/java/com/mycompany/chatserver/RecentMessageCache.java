@@ -0,0 +1,262 @@
+package com.mycompany.chatserver;
+
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RecentMessageCache {
+
+    // Keeps the newest messages of recently read channels in memory, ordered by timestamp
+    // like the database queries. A channel holds every message newer than its floor, so a
+    // query is answered from memory when it doesn't reach below the floor.
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+    private final int channelCapacity;
+    private final int maxMessages;
+    private final AtomicInteger totalMessages = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+
+    public interface Loader {
+
+        List<ChatMessage> loadNewest(String channel, int limit);
+    }
+
+    private class Channel {
+
+        private final ArrayList<ChatMessage> messages = new ArrayList<>();
+        private long floor = Long.MIN_VALUE;
+        private volatile long lastAccess;
+
+        // While the first load runs, changes are collected here and applied after it. Set to
+        // null if the load fails or more changes come in than the channel holds.
+        private List<ChatMessage> pending = new ArrayList<>();
+        private boolean loaded = false;
+
+        private void apply(ChatMessage message) {
+            // Replace the earlier version of the message, if any, with this one
+            for (int i = 0; i < messages.size(); i++) {
+                if (messages.get(i).id == message.id) {
+                    messages.remove(i);
+                    totalMessages.decrementAndGet();
+                    break;
+                }
+            }
+            long time = timestamp(message);
+            if (time <= floor) {
+                return;
+            }
+            int low = 0;
+            int high = messages.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamp(messages.get(middle)) <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            messages.add(low, message);
+            totalMessages.incrementAndGet();
+
+            while (messages.size() > channelCapacity) {
+                ChatMessage oldest = messages.remove(0);
+                totalMessages.decrementAndGet();
+                floor = Math.max(floor, timestamp(oldest));
+            }
+        }
+    }
+
+    public RecentMessageCache(int channelCapacity, int maxMessages) {
+        this.channelCapacity = channelCapacity;
+        this.maxMessages = maxMessages;
+    }
+
+    public boolean isEnabled() {
+        return channelCapacity > 0 && maxMessages > 0;
+    }
+
+    private static long timestamp(ChatMessage message) {
+        return message.sent.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    public ArrayList<ChatMessage> getNewest(String channel, int limit, Loader loader) {
+        // Newest first, returns null if the channel can't be answered from memory
+        if (!isEnabled() || limit > channelCapacity) {
+            return null;
+        }
+        Channel c = load(channel, loader);
+        if (c == null) {
+            return null;
+        }
+        synchronized (c) {
+            if (c.messages.size() < limit && c.floor != Long.MIN_VALUE) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            ArrayList<ChatMessage> result = new ArrayList<>(Math.min(limit, c.messages.size()));
+            for (int i = c.messages.size() - 1; i >= 0 && result.size() < limit; i--) {
+                result.add(c.messages.get(i));
+            }
+            return result;
+        }
+    }
+
+    public ArrayList<ChatMessage> getSince(String channel, long messagesSince, Loader loader) {
+        // Oldest first, returns null if messages that old may be missing from memory
+        if (!isEnabled()) {
+            return null;
+        }
+        Channel c = load(channel, loader);
+        if (c == null) {
+            return null;
+        }
+        synchronized (c) {
+            if (messagesSince < c.floor) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            ArrayList<ChatMessage> result = new ArrayList<>();
+            for (int i = c.messages.size() - 1; i >= 0; i--) {
+                if (timestamp(c.messages.get(i)) <= messagesSince) {
+                    break;
+                }
+                result.add(c.messages.get(i));
+            }
+            Collections.reverse(result);
+            return result;
+        }
+    }
+
+    private Channel load(String channel, Loader loader) {
+        Channel created = new Channel();
+        Channel c = channels.putIfAbsent(channel, created);
+        if (c == null) {
+            c = created;
+            loads.increment();
+
+            // Changes committed while the database is read are kept in pending and replayed,
+            // applying a message that is already in the result only replaces it
+            List<ChatMessage> newest = null;
+            try {
+                newest = loader.loadNewest(channel, channelCapacity);
+            } finally {
+                synchronized (c) {
+                    if (newest == null || c.pending == null) {
+                        // Failed or abandoned, the next read of the channel tries again
+                        c.pending = null;
+                        channels.remove(channel, c);
+                        newest = null;
+                    } else {
+                        // Loaded newest first, and the channel is empty so far
+                        for (int i = newest.size() - 1; i >= 0; i--) {
+                            c.messages.add(newest.get(i));
+                        }
+                        totalMessages.addAndGet(newest.size());
+                        if (newest.size() >= channelCapacity) {
+                            c.floor = timestamp(newest.get(newest.size() - 1));
+                        }
+                        for (ChatMessage message : c.pending) {
+                            c.apply(message);
+                        }
+                        c.pending = null;
+                        c.loaded = true;
+                    }
+                }
+            }
+            if (newest == null) {
+                return null;
+            }
+            evictIfFull();
+        }
+        c.lastAccess = System.currentTimeMillis();
+        synchronized (c) {
+            // Another thread is still loading the channel, go to the database this time
+            return c.loaded ? c : null;
+        }
+    }
+
+    public void messageChanged(ChatMessage message) {
+        // Called by the writer in commit order, for new, edited and deleted messages
+        Channel c = channels.get(message.channel);
+        if (c == null) {
+            return;
+        }
+        ChatMessage copy = new ChatMessage(message.channel, message.sent.truncatedTo(ChronoUnit.MILLIS),
+                message.userName, message.message, message.tag);
+        copy.id = message.id;
+        synchronized (c) {
+            if (c.loaded) {
+                c.apply(copy);
+            } else if (c.pending != null) {
+                if (c.pending.size() >= channelCapacity) {
+                    // Too busy to catch up with a slow load, give it up
+                    c.pending = null;
+                    channels.remove(message.channel, c);
+                } else {
+                    c.pending.add(copy);
+                }
+            }
+        }
+        if (totalMessages.get() > maxMessages) {
+            evictIfFull();
+        }
+    }
+
+    private synchronized void evictIfFull() {
+        // Drop least recently read channels until back under nine tenths of the limit
+        if (totalMessages.get() <= maxMessages) {
+            return;
+        }
+        ArrayList<Map.Entry<String, Channel>> entries = new ArrayList<>(channels.entrySet());
+        entries.sort((lhs, rhs) -> Long.compare(lhs.getValue().lastAccess, rhs.getValue().lastAccess));
+        Iterator<Map.Entry<String, Channel>> it = entries.iterator();
+        while (totalMessages.get() > maxMessages * 9L / 10 && it.hasNext()) {
+            Map.Entry<String, Channel> entry = it.next();
+            Channel c = entry.getValue();
+            synchronized (c) {
+                if (!c.loaded || !channels.remove(entry.getKey(), c)) {
+                    continue;
+                }
+                totalMessages.addAndGet(-c.messages.size());
+                c.messages.clear();
+                c.loaded = false;
+            }
+            evictions.increment();
+        }
+    }
+
+    public void clear() {
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            Channel c = entry.getValue();
+            synchronized (c) {
+                if (channels.remove(entry.getKey(), c)) {
+                    totalMessages.addAndGet(-c.messages.size());
+                    c.messages.clear();
+                    c.loaded = false;
+                    c.pending = null;
+                }
+            }
+        }
+    }
+
+    public String getStats() {
+        return "message-cache: channels=" + channels.size()
+                + ", messages=" + totalMessages.get() + "/" + maxMessages
+                + ", hits=" + hits.sum()
+                + ", misses=" + misses.sum()
+                + ", loads=" + loads.sum()
+                + ", evictions=" + evictions.sum();
+    }
+}
@@ -3,14 +3,9 @@ package com.mycompany.chatserver;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.stream.Collectors;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -24,6 +19,7 @@ public class RegistrationHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
 
         String errorResponse = "";
         int code = 200;
@@ -52,16 +48,7 @@ public class RegistrationHandler implements HttpHandler {
                 }
 
                 if (contentType.equalsIgnoreCase("application/json")) {
-                    InputStream stream = exchange.getRequestBody();
-
-                    String text = new BufferedReader(new InputStreamReader(stream,
-                            StandardCharsets.UTF_8))
-                            .lines()
-                            .collect(Collectors.joining("\n"));
-
-                    stream.close();
-
-                    JSONObject registrationMsg = new JSONObject(text);
+                    JSONObject registrationMsg = RequestBodyReader.readJson(exchange);
 
                     String username = registrationMsg.getJSONObject("userdetails").getString("username");
                     String password = registrationMsg.getJSONObject("userdetails").getString("password");
@@ -69,7 +56,7 @@ public class RegistrationHandler implements HttpHandler {
                     String role = registrationMsg.getJSONObject("userdetails").getString("role");
 
                    
-                    if (text.isEmpty()) {
+                    if (registrationMsg.isEmpty()) {
                         code = 401;
                         errorResponse = "Error: text was empty.";
                     } else {
@@ -86,6 +73,9 @@ public class RegistrationHandler implements HttpHandler {
                     errorResponse = "Content-Type must be application/json";
                 }
             }
+        } catch (RequestBodyReader.BodyTooLargeException e) {
+            errorResponse = "Request body too large";
+            code = 413;
         } catch (JSONException e) {
             e.printStackTrace();
             System.out.println("Invalid JSON-file");
@@ -109,5 +99,6 @@ public class RegistrationHandler implements HttpHandler {
             os.close();
         }
         exchange.close();
+        Metrics.recordRequest("register", "register", exchange.getRequestMethod(), code, start);
     }
 }
@@ -0,0 +1,84 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+public class RequestBodyReader {
+
+    // Reads JSON request bodies. Exactly Content-Length bytes are read into a pooled buffer
+    // and parsed from there in one pass, and bodies over the size limit are refused
+    // before any of them is read.
+    public static final int MAX_BODY_SIZE = ChatConfig.getInt("http.maxBodySize", 65536);
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final BufferPool BUFFERS = new BufferPool(BUFFER_SIZE, 256, false);
+
+    public static class BodyTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException(long size) {
+            super("Request body of " + size + " bytes is over the limit of " + MAX_BODY_SIZE);
+        }
+    }
+
+    private RequestBodyReader() {
+    }
+
+    public static JSONObject readJson(HttpExchange exchange) throws IOException {
+        // Throws JSONException for an empty or invalid body, like new JSONObject(text) did
+        long contentLength = contentLength(exchange);
+        if (contentLength > MAX_BODY_SIZE) {
+            throw new BodyTooLargeException(contentLength);
+        }
+
+        ByteBuffer buffer = BUFFERS.acquire();
+        try (InputStream stream = exchange.getRequestBody()) {
+            byte[] bytes = buffer.array();
+            if (contentLength > bytes.length) {
+                bytes = new byte[(int) contentLength];
+            }
+            int length = 0;
+            long limit = contentLength >= 0 ? contentLength : MAX_BODY_SIZE + 1L;
+            while (length < limit) {
+                if (length == bytes.length) {
+                    // Only for bodies without Content-Length
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(bytes.length * 2L, limit));
+                }
+                int read = stream.read(bytes, length, (int) Math.min(bytes.length, limit) - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+            if (length > MAX_BODY_SIZE) {
+                throw new BodyTooLargeException(length);
+            }
+            return new JSONObject(new JSONTokener(new InputStreamReader(
+                    new ByteArrayInputStream(bytes, 0, length), StandardCharsets.UTF_8)));
+        } finally {
+            BUFFERS.release(buffer);
+        }
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        // -1 if the length isn't known in advance, e.g. a chunked body
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.json.JSONObject;
+
+public class RequestContext {
+
+    // State of a single request. A new context is made for every exchange, so routes keep
+    // everything they need here instead of in fields shared between requests.
+    private final HttpExchange exchange;
+    private final Map<String, String> params;
+    private final long startNanos = System.nanoTime();
+    private String routeName = "";
+    private JSONObject body;
+    private int status = 0;
+    private boolean detached = false;
+
+    public RequestContext(HttpExchange exchange) {
+        this.exchange = exchange;
+        this.params = ChatHandler.parseQuery(exchange.getRequestURI().getQuery());
+    }
+
+    public HttpExchange getExchange() {
+        return exchange;
+    }
+
+    public String getMethod() {
+        return exchange.getRequestMethod().toUpperCase();
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    public String getParam(String name) {
+        return params.get(name);
+    }
+
+    public String getHeader(String name) {
+        return exchange.getRequestHeaders().getFirst(name);
+    }
+
+    public Headers getResponseHeaders() {
+        return exchange.getResponseHeaders();
+    }
+
+    public String getUsername() {
+        HttpPrincipal principal = exchange.getPrincipal();
+        return principal != null ? principal.getUsername() : null;
+    }
+
+    public JSONObject getBody() throws IOException {
+        // Read on first use, throws JSONException if it isn't a JSON object
+        if (body == null) {
+            body = RequestBodyReader.readJson(exchange);
+        }
+        return body;
+    }
+
+    public String getRouteName() {
+        return routeName;
+    }
+
+    void setRouteName(String routeName) {
+        this.routeName = routeName;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isResponded() {
+        return status != 0;
+    }
+
+    public void respond(int code, String text) throws IOException {
+        respond(code, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void respond(int code, byte[] bytes) throws IOException {
+        status = code;
+        exchange.sendResponseHeaders(code, bytes.length);
+
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.flush();
+        os.close();
+    }
+
+    public void respondEmpty(int code) throws IOException {
+        status = code;
+        exchange.sendResponseHeaders(code, -1);
+    }
+
+    public void responded(int code) {
+        // For routes that send the response headers themselves, e.g. streamed bodies
+        status = code;
+    }
+
+    public void detach() {
+        // The route answers later from another thread, the router leaves the exchange open
+        detached = true;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+}
@@ -0,0 +1,18 @@
+package com.mycompany.chatserver;
+
+public class RequestException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    // A request that can't be served, the message is sent to the client with the status code
+    private final int status;
+
+    public RequestException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,108 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.Headers;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RequestLimits implements Middleware {
+
+    // Request budgets shared by all HTTP contexts. Remote addresses are limited by
+    // RateLimitFilter before authentication, users by this middleware after it.
+    public enum Budget {
+        READ, WRITE, REGISTRATION
+    }
+
+    private static final int MAX_KEYS = ChatConfig.getInt("ratelimit.maxKeys", 100000);
+
+    private final RateLimiter userReads;
+    private final RateLimiter userWrites;
+    private final RateLimiter ipReads;
+    private final RateLimiter ipWrites;
+    private final RateLimiter ipRegistrations;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final AtomicLong shed = new AtomicLong();
+
+    public RequestLimits() {
+        userReads = new RateLimiter("user-read", ChatConfig.getInt("ratelimit.user.readPerMinute", 1200),
+                ChatConfig.getInt("ratelimit.user.readBurst", 200), MAX_KEYS);
+        userWrites = new RateLimiter("user-write", ChatConfig.getInt("ratelimit.user.writePerMinute", 120),
+                ChatConfig.getInt("ratelimit.user.writeBurst", 30), MAX_KEYS);
+        ipReads = new RateLimiter("ip-read", ChatConfig.getInt("ratelimit.ip.readPerMinute", 6000),
+                ChatConfig.getInt("ratelimit.ip.readBurst", 1000), MAX_KEYS);
+        ipWrites = new RateLimiter("ip-write", ChatConfig.getInt("ratelimit.ip.writePerMinute", 600),
+                ChatConfig.getInt("ratelimit.ip.writeBurst", 100), MAX_KEYS);
+        ipRegistrations = new RateLimiter("ip-registration", ChatConfig.getInt("ratelimit.ip.registrationPerMinute", 10),
+                ChatConfig.getInt("ratelimit.ip.registrationBurst", 5), MAX_KEYS);
+        maxInFlight = ChatConfig.getInt("http.maxInFlight", 256);
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    public static Budget budgetOf(String method, String path) {
+        if (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD")) {
+            return Budget.READ;
+        }
+        // Registering and logging in both hash a password
+        if (path.startsWith("/registration") || path.startsWith("/login")) {
+            return Budget.REGISTRATION;
+        }
+        return Budget.WRITE;
+    }
+
+    public long tryAcquireAddress(String address, Budget budget) {
+        switch (budget) {
+            case READ:
+                return ipReads.tryAcquire(address);
+            case REGISTRATION:
+                return ipRegistrations.tryAcquire(address);
+            default:
+                return ipWrites.tryAcquire(address);
+        }
+    }
+
+    public boolean tryEnter() {
+        // Global limit of requests being handled at the same time
+        if (inFlight.tryAcquire()) {
+            return true;
+        }
+        shed.incrementAndGet();
+        Metrics.increment("chat_http_shed_requests_total", "Requests refused because too many were in flight", "");
+        return false;
+    }
+
+    public void exit() {
+        inFlight.release();
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @Override
+    public void handle(RequestContext context, Route next) throws Exception {
+        String username = context.getUsername();
+        if (username != null) {
+            RateLimiter limiter = budgetOf(context.getMethod(), "/chat") == Budget.READ ? userReads : userWrites;
+            long wait = limiter.tryAcquire(username);
+            if (wait > 0) {
+                setRetryAfter(context.getResponseHeaders(), wait);
+                throw new RequestException(429, "Too many requests");
+            }
+        }
+        next.handle(context);
+    }
+
+    public static void setRetryAfter(Headers headers, long waitNanos) {
+        // Whole seconds, rounded up so the client doesn't come back too early
+        long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        headers.set("Retry-After", Long.toString(seconds));
+    }
+
+    public String getStats() {
+        return userReads.getStats() + "\n" + userWrites.getStats() + "\n" + ipReads.getStats() + "\n"
+                + ipWrites.getStats() + "\n" + ipRegistrations.getStats()
+                + "\nin-flight: active=" + getInFlight() + "/" + maxInFlight
+                + " shed=" + shed.get();
+    }
+}
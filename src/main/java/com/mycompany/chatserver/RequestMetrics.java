@@ -0,0 +1,34 @@
+package com.mycompany.chatserver;
+
+import java.util.function.Predicate;
+
+public class RequestMetrics implements Middleware {
+
+    // Times every routed /chat request and counts responses by status. Added first, so
+    // requests refused by later middleware are counted too.
+    private final Predicate<String> isRoute;
+
+    public RequestMetrics(Predicate<String> isRoute) {
+        this.isRoute = isRoute;
+    }
+
+    @Override
+    public void handle(RequestContext context, Route next) throws Exception {
+        try {
+            next.handle(context);
+        } catch (Exception e) {
+            // Mapped here so the status is known when the request is recorded
+            ErrorMapper.respond(context, e);
+        } finally {
+            // Anything that isn't a registered route name is counted under one label value
+            String route = isRoute.test(context.getRouteName()) ? context.getRouteName() : "other";
+            if (context.isDetached()) {
+                // Answered later by another thread, e.g. a parked long poll
+                Metrics.increment("chat_http_detached_requests_total", "Requests answered after the handler returned",
+                        "route=\"" + route + "\"");
+            } else {
+                Metrics.recordRequest("chat", route, context.getMethod(), context.getStatus(), context.getStartNanos());
+            }
+        }
+    }
+}
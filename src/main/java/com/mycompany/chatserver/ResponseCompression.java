@@ -0,0 +1,168 @@
+package com.mycompany.chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class ResponseCompression {
+
+    // gzip and deflate content encoding for responses. Deflaters hold native memory and are
+    // slow to create, so they are reset and reused instead of made for every response.
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final boolean ENABLED = ChatConfig.getBoolean("compress.enabled", true);
+    private static final int MIN_SIZE = ChatConfig.getInt("compress.minSize", 1024);
+    private static final int LEVEL = ChatConfig.getInt("compress.level", 6);
+    private static final int MAX_POOLED = ChatConfig.getInt("compress.poolSize", 64);
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // gzip wraps raw deflate data in its own header and trailer, "deflate" in HTTP means
+    // the zlib format, so the two need differently configured deflaters
+    private static final ConcurrentLinkedQueue<Deflater> RAW_DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Deflater> ZLIB_DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private ResponseCompression() {
+    }
+
+    public static String negotiate(String acceptEncoding) {
+        // Picks gzip or deflate from an Accept-Encoding header, null if neither is accepted
+        if (!ENABLED || acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            if (params.length > 1 && isZeroQuality(params[1])) {
+                continue;
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip") || coding.equals("*")) {
+                gzip = true;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = true;
+            }
+        }
+        return gzip ? GZIP : (deflate ? DEFLATE : null);
+    }
+
+    private static boolean isZeroQuality(String param) {
+        param = param.trim();
+        if (!param.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(param.substring(2)) <= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static boolean isWorthCompressing(int length) {
+        // Small bodies don't get much smaller but still cost a deflate run
+        return length >= MIN_SIZE;
+    }
+
+    public static byte[] compress(byte[] data, String encoding) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream out = wrap(bytes, encoding)) {
+            out.write(data);
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static OutputStream wrap(OutputStream out, String encoding) throws IOException {
+        // Closing the returned stream finishes the compressed data, closes out and
+        // returns the deflater to the pool
+        boolean gzip = encoding.equals(GZIP);
+        return new CompressingStream(out, acquire(gzip), gzip);
+    }
+
+    private static Deflater acquire(boolean raw) {
+        Deflater deflater = (raw ? RAW_DEFLATERS : ZLIB_DEFLATERS).poll();
+        if (deflater == null) {
+            return new Deflater(LEVEL, raw);
+        }
+        pooled.decrementAndGet();
+        return deflater;
+    }
+
+    private static void release(Deflater deflater, boolean raw) {
+        deflater.reset();
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            (raw ? RAW_DEFLATERS : ZLIB_DEFLATERS).offer(deflater);
+        } else {
+            pooled.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private static class CompressingStream extends DeflaterOutputStream {
+
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private long length = 0;
+        private boolean finished = false;
+        private boolean released = false;
+
+        CompressingStream(OutputStream out, Deflater deflater, boolean gzip) throws IOException {
+            super(out, deflater, 8192);
+            this.gzip = gzip;
+            if (gzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (gzip) {
+                crc.update(b, off, len);
+                length += len;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            super.finish();
+            finished = true;
+            if (gzip) {
+                writeIntLE((int) crc.getValue());
+                writeIntLE((int) length);
+            }
+        }
+
+        private void writeIntLE(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    release(def, gzip);
+                }
+            }
+        }
+    }
+}
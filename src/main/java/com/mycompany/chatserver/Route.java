@@ -0,0 +1,7 @@
+package com.mycompany.chatserver;
+
+public interface Route {
+
+    // Handles one kind of request. Anything thrown is turned into an error response by ErrorMapper.
+    void handle(RequestContext context) throws Exception;
+}
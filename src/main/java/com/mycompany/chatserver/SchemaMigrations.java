@@ -0,0 +1,90 @@
+package com.mycompany.chatserver;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class SchemaMigrations {
+
+    // Each entry upgrades the schema by one version. The database's PRAGMA user_version
+    // holds the number of migrations applied, so new entries must only be appended.
+    private static final String[][] MIGRATIONS = {
+        // 1: Original tables. Databases created before versioning already have these.
+        {
+            "CREATE TABLE IF NOT EXISTS Users(id INTEGER PRIMARY KEY AUTOINCREMENT, role TEXT, username TEXT UNIQUE, nickname TEXT, password TEXT, email TEXT, salt TEXT)",
+            "CREATE TABLE IF NOT EXISTS Messages(id INTEGER PRIMARY KEY AUTOINCREMENT, channel TEXT, tag TEXT, message TEXT, timestamp INTEGER, username REFERENCES Users)"
+        },
+        // 2: Index for getMessages, which filters by channel and sorts by timestamp.
+        // Edit and delete look messages up by id, which is the rowid and already indexed.
+        {
+            "CREATE INDEX IF NOT EXISTS MessagesChannelTimestamp ON Messages(channel, timestamp)"
+        },
+        // 3: Index for paging through a channel by message id, in either direction
+        {
+            "CREATE INDEX IF NOT EXISTS MessagesChannelId ON Messages(channel, id)"
+        },
+        // 4: Full-text index of message texts. It stores no copy of the text, only the index
+        // (external content), and triggers keep it in step with Messages. Deleting a message
+        // empties its text, which removes it from the index too. Existing rows are indexed
+        // by the rebuild.
+        {
+            "CREATE VIRTUAL TABLE IF NOT EXISTS MessagesSearch USING fts5(message, content='Messages', content_rowid='id',"
+            + " tokenize='unicode61 remove_diacritics 2')",
+            "CREATE TRIGGER IF NOT EXISTS MessagesSearchInsert AFTER INSERT ON Messages BEGIN"
+            + " INSERT INTO MessagesSearch(rowid, message) VALUES (new.id, new.message); END",
+            "CREATE TRIGGER IF NOT EXISTS MessagesSearchDelete AFTER DELETE ON Messages BEGIN"
+            + " INSERT INTO MessagesSearch(MessagesSearch, rowid, message) VALUES ('delete', old.id, old.message); END",
+            "CREATE TRIGGER IF NOT EXISTS MessagesSearchUpdate AFTER UPDATE OF message ON Messages BEGIN"
+            + " INSERT INTO MessagesSearch(MessagesSearch, rowid, message) VALUES ('delete', old.id, old.message);"
+            + " INSERT INTO MessagesSearch(rowid, message) VALUES (new.id, new.message); END",
+            "INSERT INTO MessagesSearch(MessagesSearch) VALUES ('rebuild')"
+        },
+        // 5: Settings of the database file, such as the shard layout it belongs to
+        {
+            "CREATE TABLE IF NOT EXISTS Settings(name TEXT PRIMARY KEY, value TEXT)"
+        }
+    };
+
+    private SchemaMigrations() {
+    }
+
+    public static int latestVersion() {
+        return MIGRATIONS.length;
+    }
+
+    public static int migrate(Connection db) throws SQLException {
+        int version = getVersion(db);
+        if (version > MIGRATIONS.length) {
+            throw new SQLException("Database schema version " + version + " is newer than this server supports");
+        }
+
+        boolean autoCommit = db.getAutoCommit();
+        db.setAutoCommit(false);
+        try (Statement s = db.createStatement()) {
+            while (version < MIGRATIONS.length) {
+                // Run each migration and its version bump in one transaction
+                for (String sql : MIGRATIONS[version]) {
+                    s.execute(sql);
+                }
+                version++;
+                s.execute("PRAGMA user_version = " + version);
+                db.commit();
+                System.out.println("Database schema upgraded to version " + version + ".");
+            }
+        } catch (SQLException e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(autoCommit);
+        }
+        return version;
+    }
+
+    private static int getVersion(Connection db) throws SQLException {
+        try (Statement s = db.createStatement();
+                ResultSet r = s.executeQuery("PRAGMA user_version")) {
+            return r.next() ? r.getInt(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.mycompany.chatserver;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class SessionManager {
+
+    // Opaque session tokens handed out by /login. A token stays valid while it keeps
+    // being used, and expires after it has been idle for the configured time.
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> userSessions = new ConcurrentHashMap<>();
+    // Bumped by every revokeUser, a login that checked the password before it gets no session
+    private final ConcurrentHashMap<String, Long> generations = new ConcurrentHashMap<>();
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final long idleTimeoutMillis;
+    private final int maxSessions;
+    private final ScheduledExecutorService sweeper;
+
+    private static class Session {
+
+        final String username;
+        volatile long lastAccess;
+
+        Session(String username, long lastAccess) {
+            this.username = username;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private SessionManager() {
+        idleTimeoutMillis = ChatConfig.getLong("session.idleTimeoutSeconds", 1800) * 1000;
+        maxSessions = ChatConfig.getInt("session.maxSessions", 100000);
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeExpired, 60, 60, TimeUnit.SECONDS);
+    }
+
+    private static class Holder {
+
+        static final SessionManager INSTANCE = new SessionManager();
+    }
+
+    public static SessionManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public long stamp(String username) {
+        // Take before verifying the password, and pass to createSession() afterwards
+        return generations.getOrDefault(username, 0L);
+    }
+
+    public boolean isStale(String username, long stamp) {
+        return stamp(username) != stamp;
+    }
+
+    public String createSession(String username, long stamp) {
+        // Returns null if the user was revoked after the stamp was taken, or there are too many sessions
+        if (sessions.size() >= maxSessions) {
+            removeExpired();
+            if (sessions.size() >= maxSessions) {
+                return null;
+            }
+        }
+        byte[] bytes = new byte[32];
+        secureRandom.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        // Registered under the user's entry so a concurrent revokeUser can't miss it. The
+        // generation is bumped before the entry is removed, so either it is seen here or the
+        // removal finds the new token.
+        boolean[] created = new boolean[1];
+        userSessions.compute(username, (u, tokens) -> {
+            if (isStale(username, stamp)) {
+                return tokens;
+            }
+            if (tokens == null) {
+                tokens = ConcurrentHashMap.newKeySet();
+            }
+            sessions.put(token, new Session(username, System.currentTimeMillis()));
+            tokens.add(token);
+            created[0] = true;
+            return tokens;
+        });
+        return created[0] ? token : null;
+    }
+
+    public String validate(String token) {
+        // Returns the username of a valid session, or null
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.lastAccess > idleTimeoutMillis) {
+            revoke(token);
+            return null;
+        }
+        // Sliding expiry, only write when the value actually moves to avoid needless contention
+        if (now - session.lastAccess > 1000) {
+            session.lastAccess = now;
+        }
+        return session.username;
+    }
+
+    public void revoke(String token) {
+        Session session = sessions.remove(token);
+        if (session != null) {
+            Set<String> tokens = userSessions.get(session.username);
+            if (tokens != null) {
+                tokens.remove(token);
+            }
+        }
+    }
+
+    public void revokeUser(String username) {
+        // Log out every session of the user, e.g. after a password change
+        generations.merge(username, 1L, Long::sum);
+        Set<String> tokens = userSessions.remove(username);
+        if (tokens != null) {
+            for (String token : tokens) {
+                sessions.remove(token);
+            }
+        }
+    }
+
+    public long getIdleTimeoutSeconds() {
+        return idleTimeoutMillis / 1000;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (String token : sessions.keySet()) {
+            Session session = sessions.get(token);
+            if (session != null && now - session.lastAccess > idleTimeoutMillis) {
+                revoke(token);
+            }
+        }
+        for (String username : userSessions.keySet()) {
+            userSessions.computeIfPresent(username, (u, tokens) -> tokens.isEmpty() ? null : tokens);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.mycompany.chatserver;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import org.sqlite.SQLiteConfig;
+
+public class ShardTool {
+
+    // Offline copy of a database into a new number of shards, run while the server is stopped.
+    // Users go to the main target file and every channel to the shard it hashes onto. Channels
+    // that stay on a shard with the same index keep their message ids, the messages of moved
+    // channels get new ids in their new shard, in the same order as before.
+    private static final int COMMIT_EVERY = 10000;
+
+    private ShardTool() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("Usage java -cp jar-file.jar com.mycompany.chatserver.ShardTool source.db target.db shards");
+            return;
+        }
+        int shardCount = Integer.parseInt(args[2]);
+        if (shardCount < 1) {
+            System.out.println("Number of shards must be at least 1");
+            return;
+        }
+        if (new File(args[1]).exists()) {
+            System.out.println("Target database " + args[1] + " already exists");
+            return;
+        }
+        reshard("jdbc:sqlite:" + args[0], "jdbc:sqlite:" + args[1], shardCount);
+    }
+
+    public static void reshard(String sourceUrl, String targetUrl, int shardCount) throws SQLException {
+        SQLiteConfig readOnly = new SQLiteConfig();
+        readOnly.setReadOnly(true);
+
+        Connection[] targets = new Connection[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                targets[i] = DriverManager.getConnection(MessageShard.fileUrl(targetUrl, i));
+                try (Statement s = targets[i].createStatement()) {
+                    s.execute("PRAGMA journal_mode = WAL");
+                }
+                MessageShard.prepare(targets[i], i, shardCount);
+                targets[i].setAutoCommit(false);
+            }
+
+            int sourceShards;
+            try (Connection source = DriverManager.getConnection(sourceUrl, readOnly.toProperties())) {
+                sourceShards = MessageShard.getShardCount(source);
+                System.out.println("Copied " + copyUsers(source, targets[0]) + " users.");
+            }
+
+            // Kept ids first, new ids are then given above them and can't collide
+            for (boolean keepIds : new boolean[]{true, false}) {
+                for (int i = 0; i < sourceShards; i++) {
+                    try (Connection source = DriverManager.getConnection(MessageShard.fileUrl(sourceUrl, i), readOnly.toProperties())) {
+                        long copied = copyMessages(source, i, targets, keepIds);
+                        System.out.println("Copied " + copied + (keepIds ? " messages in place" : " moved messages") + " from shard " + i + ".");
+                    }
+                }
+            }
+            for (Connection target : targets) {
+                target.commit();
+            }
+            System.out.println("Database split into " + shardCount + " shards.");
+        } finally {
+            for (Connection target : targets) {
+                if (target != null) {
+                    target.close();
+                }
+            }
+        }
+    }
+
+    private static int copyUsers(Connection source, Connection target) throws SQLException {
+        int count = 0;
+        try (Statement s = source.createStatement();
+                ResultSet r = s.executeQuery("SELECT id, role, username, nickname, password, email, salt FROM Users ORDER BY id");
+                PreparedStatement p = target.prepareStatement(
+                        "INSERT INTO Users(id, role, username, nickname, password, email, salt) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            while (r.next()) {
+                p.setLong(1, r.getLong("id"));
+                p.setString(2, r.getString("role"));
+                p.setString(3, r.getString("username"));
+                p.setString(4, r.getString("nickname"));
+                p.setString(5, r.getString("password"));
+                p.setString(6, r.getString("email"));
+                p.setString(7, r.getString("salt"));
+                p.executeUpdate();
+                count++;
+            }
+        }
+        target.commit();
+        return count;
+    }
+
+    private static long copyMessages(Connection source, int sourceIndex, Connection[] targets, boolean keepIds) throws SQLException {
+        // Oldest first, so messages that get new ids keep their order within the channel
+        PreparedStatement[] inserts = new PreparedStatement[targets.length];
+        long count = 0;
+        try (Statement s = source.createStatement();
+                ResultSet r = s.executeQuery("SELECT id, channel, tag, message, timestamp, username FROM Messages ORDER BY id")) {
+            for (int i = 0; i < targets.length; i++) {
+                inserts[i] = targets[i].prepareStatement(
+                        "INSERT INTO Messages(id, channel, tag, message, timestamp, username) VALUES (?, ?, ?, ?, ?, ?)");
+            }
+            while (r.next()) {
+                String channel = r.getString("channel");
+                int shard = MessageShard.shardOf(channel, targets.length);
+
+                if ((shard == sourceIndex) != keepIds) {
+                    continue;
+                }
+
+                PreparedStatement p = inserts[shard];
+                if (keepIds) {
+                    p.setLong(1, r.getLong("id"));
+                } else {
+                    p.setNull(1, Types.INTEGER);
+                }
+                p.setString(2, channel);
+                p.setString(3, r.getString("tag"));
+                p.setString(4, r.getString("message"));
+                p.setLong(5, r.getLong("timestamp"));
+                p.setString(6, r.getString("username"));
+                p.executeUpdate();
+
+                if (++count % COMMIT_EVERY == 0) {
+                    for (Connection target : targets) {
+                        target.commit();
+                    }
+                }
+            }
+        } finally {
+            for (PreparedStatement p : inserts) {
+                if (p != null) {
+                    p.close();
+                }
+            }
+        }
+        return count;
+    }
+}
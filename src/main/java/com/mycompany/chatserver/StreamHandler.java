@@ -0,0 +1,149 @@
+package com.mycompany.chatserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class StreamHandler implements HttpHandler {
+
+    // Server-Sent Events stream of new, edited and deleted messages of one channel
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ChannelSubscriptions subscriptions;
+    private final int bufferSize;
+    private final long heartbeatMillis;
+    private final int backfillLimit;
+
+    private static class StreamSubscriber implements ChannelSubscriptions.Subscriber {
+
+        final BlockingQueue<ChannelEvent> events;
+        volatile boolean disconnected = false;
+
+        StreamSubscriber(int bufferSize) {
+            events = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        @Override
+        public boolean deliver(ChannelEvent event) {
+            return events.offer(event);
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+        }
+    }
+
+    public StreamHandler(ChannelSubscriptions subscriptions) {
+        this.subscriptions = subscriptions;
+        this.bufferSize = Math.max(1, ChatConfig.getInt("stream.bufferSize", 256));
+        this.heartbeatMillis = ChatConfig.getLong("stream.heartbeatSeconds", 15) * 1000;
+        this.backfillLimit = ChatConfig.getInt("stream.backfillLimit", 1000);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String errorResponse = "";
+        int code = 200;
+
+        Map<String, String> params = ChatHandler.parseQuery(exchange.getRequestURI().getQuery());
+        String channel = params.get("channel");
+
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            code = 400;
+            errorResponse = "Not supported";
+        } else if (channel == null || channel.isEmpty()) {
+            code = 400;
+            errorResponse = "Specify channel, e.g. /chat/stream?channel=main";
+        } else {
+            StreamSubscriber subscriber = new StreamSubscriber(bufferSize);
+            if (subscriptions.subscribe(channel, subscriber)) {
+                try {
+                    stream(exchange, channel, getLastEventId(exchange, params), subscriber);
+                } catch (IOException e) {
+                    // Client closed the stream
+                } finally {
+                    subscriptions.unsubscribe(channel, subscriber);
+                    exchange.close();
+                }
+                return;
+            }
+            code = 503;
+            errorResponse = "Too many open streams";
+        }
+
+        byte[] bytes = errorResponse.getBytes("UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.flush();
+        os.close();
+    }
+
+    private void stream(HttpExchange exchange, String channel, long lastEventId, StreamSubscriber subscriber) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream os = exchange.getResponseBody();
+
+        // Subscribed before reading missed messages, so nothing is lost in between.
+        // New messages already sent from the database are skipped when they arrive as events.
+        long lastSentId = lastEventId;
+        if (lastEventId >= 0) {
+            lastSentId = ChannelBackfill.send(channel, lastEventId, backfillLimit, new ChannelBackfill.Sink() {
+                @Override
+                public void message(ChannelEvent event) throws IOException {
+                    os.write(event.toServerSentEvent());
+                }
+
+                @Override
+                public void reset(String json) throws IOException {
+                    os.write(("event: reset\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+                }
+            });
+        }
+        os.write(HEARTBEAT);
+        os.flush();
+
+        try {
+            while (!subscriber.disconnected) {
+                ChannelEvent event = subscriber.events.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    os.write(HEARTBEAT);
+                } else {
+                    // Write everything that is queued before flushing
+                    while (event != null) {
+                        if (!event.type.equals("message") || event.message.id > lastSentId) {
+                            os.write(event.toServerSentEvent());
+                        }
+                        event = subscriber.events.poll();
+                    }
+                }
+                os.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long getLastEventId(HttpExchange exchange, Map<String, String> params) {
+        String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = params.get("lastEventId");
+        }
+        if (lastEventId == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
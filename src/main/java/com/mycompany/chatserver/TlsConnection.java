@@ -0,0 +1,200 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+public class TlsConnection {
+
+    // Non-blocking TLS on top of a SocketChannel, driven by an event loop thread.
+    // Network and application buffers are borrowed from pools only while they hold data.
+    public interface DataHandler {
+
+        // Receives decrypted bytes in read mode, and must consume all of them
+        void onData(ByteBuffer data) throws IOException;
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool packetBuffers;
+    private final BufferPool appBuffers;
+
+    // All three are kept in write mode, data is between 0 and position
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    public TlsConnection(SocketChannel channel, SSLEngine engine, BufferPool packetBuffers, BufferPool appBuffers) {
+        this.channel = channel;
+        this.engine = engine;
+        this.packetBuffers = packetBuffers;
+        this.appBuffers = appBuffers;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    public boolean read(DataHandler handler) throws IOException {
+        // Returns false when the peer has closed the connection
+        if (netIn == null) {
+            netIn = packetBuffers.acquire();
+        }
+        int read = channel.read(netIn);
+
+        netIn.flip();
+        try {
+            unwrap(handler);
+        } finally {
+            netIn.compact();
+            if (netIn.position() == 0) {
+                packetBuffers.release(netIn);
+                netIn = null;
+            }
+            if (appIn != null && appIn.position() == 0) {
+                appBuffers.release(appIn);
+                appIn = null;
+            }
+        }
+
+        if (read < 0) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException e) {
+                // Peer closed without close_notify
+            }
+            return false;
+        }
+        return !engine.isInboundDone();
+    }
+
+    private void unwrap(DataHandler handler) throws IOException {
+        while (netIn.hasRemaining()) {
+            if (appIn == null) {
+                appIn = appBuffers.acquire();
+            }
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+            if (appIn.position() > 0) {
+                appIn.flip();
+                handler.onData(appIn);
+                appIn.clear();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // Rest of the TLS record hasn't arrived yet
+                    return;
+                case CLOSED:
+                    return;
+                default:
+                    break;
+            }
+            handshake();
+        }
+        handshake();
+    }
+
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    if (netOut == null) {
+                        netOut = packetBuffers.acquire();
+                    }
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flush()) {
+                        // Socket is full, the rest is sent when it becomes writable
+                        return;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flush();
+                        return;
+                    }
+                    break;
+                default:
+                    flush();
+                    return;
+            }
+        }
+    }
+
+    public boolean write(ByteBuffer src) throws IOException {
+        // Encrypts as much of src as fits, returns true when all of it was taken
+        while (src.hasRemaining()) {
+            if (netOut == null) {
+                netOut = packetBuffers.acquire();
+            }
+            SSLEngineResult result = engine.wrap(src, netOut);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    if (!flush()) {
+                        return false;
+                    }
+                    break;
+                case CLOSED:
+                    throw new IOException("TLS connection closed");
+                default:
+                    break;
+            }
+            if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                handshake();
+            }
+        }
+        return true;
+    }
+
+    public boolean flush() throws IOException {
+        // Returns true when everything encrypted so far has been written to the socket
+        if (netOut == null) {
+            return true;
+        }
+        netOut.flip();
+        while (netOut.hasRemaining() && channel.write(netOut) > 0) {
+        }
+        netOut.compact();
+        if (netOut.position() == 0) {
+            packetBuffers.release(netOut);
+            netOut = null;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut != null && netOut.position() > 0;
+    }
+
+    public void close() {
+        try {
+            engine.closeOutbound();
+            handshake();
+        } catch (IOException e) {
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        packetBuffers.release(netIn);
+        packetBuffers.release(netOut);
+        appBuffers.release(appIn);
+        netIn = null;
+        netOut = null;
+        appIn = null;
+    }
+}
@@ -0,0 +1,175 @@
+package com.mycompany.chatserver;
+
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+public class TlsSettings {
+
+    // Server side TLS setup shared by the HTTPS and WebSocket endpoints. Clients that come
+    // back within the session timeout resume their session, from the server's cache or from
+    // a session ticket, instead of paying for a full handshake with the certificate's key.
+    private static final LongAdder fullHandshakes = new LongAdder();
+    private static final LongAdder resumedHandshakes = new LongAdder();
+    private static final LongAdder failedHandshakes = new LongAdder();
+
+    private TlsSettings() {
+    }
+
+    public static void setUp() {
+        // Read by the JDK when TLS is first used, so this must run before any SSLContext is made
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                Boolean.toString(ChatConfig.getBoolean("tls.sessionTickets", true)));
+    }
+
+    public static SSLContext createContext(KeyManager[] keyManagers, TrustManager[] trustManagers) throws Exception {
+        SSLContext context = SSLContext.getInstance(ChatConfig.getString("tls.protocol", "TLS"));
+        context.init(keyManagers, trustManagers, null);
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(ChatConfig.getInt("tls.sessionCacheSize", 20480));
+        sessions.setSessionTimeout((int) ChatConfig.getLong("tls.sessionTimeoutSeconds", TimeUnit.HOURS.toSeconds(1)));
+        return new CountingContext(context);
+    }
+
+    public static SSLParameters createParameters(SSLContext context) {
+        // Made once at startup, every connection gets a copy of the same settings
+        SSLParameters parameters = context.getDefaultSSLParameters();
+        List<String> supportedProtocols = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : ChatConfig.getString("tls.protocols", "TLSv1.3,TLSv1.2").split(",")) {
+            if (supportedProtocols.contains(protocol.trim())) {
+                protocols.add(protocol.trim());
+            }
+        }
+        if (!protocols.isEmpty()) {
+            parameters.setProtocols(protocols.toArray(new String[0]));
+        }
+
+        String suites = ChatConfig.getString("tls.cipherSuites", "");
+        if (!suites.isEmpty()) {
+            parameters.setCipherSuites(suites.split(","));
+        } else {
+            parameters.setCipherSuites(preferredSuites(parameters.getCipherSuites()));
+        }
+        // Our order wins over the client's
+        parameters.setUseCipherSuitesOrder(true);
+        return parameters;
+    }
+
+    private static String[] preferredSuites(String[] enabled) {
+        // TLS 1.3 suites first, then ECDHE with AEAD ciphers, then other ECDHE suites.
+        // Suites without forward secrecy or with plain DHE are left out.
+        List<String> tls13 = new ArrayList<>();
+        List<String> ecdheAead = new ArrayList<>();
+        List<String> ecdhe = new ArrayList<>();
+        for (String suite : enabled) {
+            if (suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_")) {
+                tls13.add(suite);
+            } else if (suite.startsWith("TLS_ECDHE_")) {
+                if (suite.contains("_GCM_") || suite.contains("_CHACHA20_")) {
+                    ecdheAead.add(suite);
+                } else {
+                    ecdhe.add(suite);
+                }
+            }
+        }
+        List<String> preferred = new ArrayList<>(tls13);
+        preferred.addAll(ecdheAead);
+        preferred.addAll(ecdhe);
+        return preferred.isEmpty() ? enabled : preferred.toArray(new String[0]);
+    }
+
+    static void handshakeFinished(boolean resumed) {
+        (resumed ? resumedHandshakes : fullHandshakes).increment();
+        Metrics.increment("chat_tls_handshakes_total", "TLS handshakes by outcome", resumed ? "type=\"resumed\"" : "type=\"full\"");
+    }
+
+    static void handshakeFailed() {
+        failedHandshakes.increment();
+        Metrics.increment("chat_tls_handshakes_total", "TLS handshakes by outcome", "type=\"failed\"");
+    }
+
+    public static String getStats() {
+        long full = fullHandshakes.sum();
+        long resumed = resumedHandshakes.sum();
+        long total = full + resumed;
+        return "tls: handshakes full=" + full + " resumed=" + resumed + " failed=" + failedHandshakes.sum()
+                + " resumed%=" + (total == 0 ? 0 : resumed * 100 / total);
+    }
+
+    private static class CountingContext extends SSLContext {
+
+        // Hands out engines that count their handshakes, everything else goes to the real context
+        CountingContext(SSLContext context) {
+            super(new CountingContextSpi(context), context.getProvider(), context.getProtocol());
+        }
+    }
+
+    private static class CountingContextSpi extends SSLContextSpi {
+
+        private final SSLContext context;
+
+        CountingContextSpi(SSLContext context) {
+            this.context = context;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom random) throws KeyManagementException {
+            context.init(km, tm, random);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return context.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return context.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new HandshakeCountingEngine(context.createSSLEngine());
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return new HandshakeCountingEngine(context.createSSLEngine(host, port));
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return context.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return context.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters() {
+            return context.getDefaultSSLParameters();
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters() {
+            return context.getSupportedSSLParameters();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.mycompany.chatserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+
+    // Token bucket kept as a single timestamp: the time at which the bucket would be full
+    // again. Taking a token moves it forward by one token interval, so a request is one
+    // compare-and-set and concurrent requests never block each other.
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    public TokenBucket(long intervalNanos, int burst, long now) {
+        this.intervalNanos = intervalNanos;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.fullAt = new AtomicLong(now);
+    }
+
+    public long tryAcquire(long now) {
+        // Returns 0 if a token was taken, otherwise nanoseconds until the next token
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            long wait = next - burstNanos - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    public boolean isFull(long now) {
+        // A full bucket behaves the same as a new one, so it can be dropped
+        return fullAt.get() - now <= 0;
+    }
+}
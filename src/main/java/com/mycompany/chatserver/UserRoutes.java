@@ -0,0 +1,58 @@
+package com.mycompany.chatserver;
+
+import org.json.JSONObject;
+
+public class UserRoutes {
+
+    // Routes for reading and changing user details through /chat
+    private UserRoutes() {
+    }
+
+    public static void getUserDetails(RequestContext context) throws Exception {
+        // Respond with details of the requested user (email and nickname)
+        String username = context.getBody().getString("user");
+        String details = ChatDatabase.getInstance().getUserDetails(username).toString();
+        context.respond(200, details);
+    }
+
+    public static void editUser(RequestContext context) throws Exception {
+        JSONObject requestBody = context.getBody();
+        String user = requestBody.getString("user");
+
+        JSONObject userDetails = requestBody.getJSONObject("userdetails");
+        String updatedUsername = userDetails.getString("updatedUsername");
+        String updatedEmail = userDetails.getString("updatedEmail");
+        String updatedNickname = userDetails.getString("updatedNickname");
+        String role = userDetails.getString("role");
+
+        ChatDatabase.getInstance().editUserDetails(user, updatedUsername, updatedEmail, role, updatedNickname);
+        context.respondEmpty(200);
+    }
+
+    public static void editPassword(RequestContext context) throws Exception {
+        // Edit user's password
+        JSONObject requestBody = context.getBody();
+        String user = requestBody.getString("user");
+        String updatedPassword = requestBody.getString("updatedPassword");
+
+        if (ChatDatabase.getInstance().editUserPassword(user, updatedPassword)) {
+            context.respondEmpty(200);
+        } else {
+            throw new RequestException(400, "Error updating user data: could not find user");
+        }
+    }
+
+    public static void removeUser(RequestContext context) throws Exception {
+        //Check if user has admin rights before deleting user from db
+        JSONObject requestBody = context.getBody();
+        String user = requestBody.getString("user");
+        String role = requestBody.getJSONObject("userdetails").getString("role");
+
+        if (!role.equals("admin")) {
+            System.out.println("Only admin is authorized to remove users.");
+            throw new RequestException(401, "Not authorized: admin rights required to remove user");
+        }
+        ChatDatabase.getInstance().adminDeleteUser(user);
+        context.respondEmpty(200);
+    }
+}
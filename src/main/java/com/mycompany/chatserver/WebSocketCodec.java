@@ -0,0 +1,271 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+public class WebSocketCodec {
+
+    // RFC 6455 frame encoding and decoding
+    public static final int CONTINUATION = 0x0;
+    public static final int TEXT = 0x1;
+    public static final int BINARY = 0x2;
+    public static final int CLOSE = 0x8;
+    public static final int PING = 0x9;
+    public static final int PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_UNSUPPORTED = 1003;
+    public static final int CLOSE_POLICY = 1008;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    public static class WebSocketException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public final int closeCode;
+
+        public WebSocketException(int closeCode, String message) {
+            super(message);
+            this.closeCode = closeCode;
+        }
+    }
+
+    public interface FrameHandler {
+
+        void onText(String text) throws IOException;
+
+        void onBinary(byte[] data) throws IOException;
+
+        void onPing(byte[] payload) throws IOException;
+
+        void onClose(int code) throws IOException;
+    }
+
+    private WebSocketCodec() {
+    }
+
+    public static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static byte[] encode(int opcode, byte[] payload) {
+        // Server frames are sent unfragmented and unmasked
+        int length = payload.length;
+        int headerLength = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[headerLength + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length <= 0xFFFF) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, frame, headerLength, length);
+        return frame;
+    }
+
+    public static byte[] encodeText(String text) {
+        return encode(TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static byte[] encodeClose(int code, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + Math.min(reasonBytes.length, 123)];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, payload.length - 2);
+        return encode(CLOSE, payload);
+    }
+
+    public static class Decoder {
+
+        private final int maxMessageSize;
+        // Bytes of an incomplete frame, only allocated while one is pending
+        private ByteBuffer inbox;
+        // Payload of a fragmented message
+        private byte[] message;
+        private int messageLength;
+        private int messageOpcode;
+
+        public Decoder(int maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+        }
+
+        public void feed(ByteBuffer data, FrameHandler handler) throws IOException {
+            ByteBuffer src;
+            if (inbox != null) {
+                ensureInboxCapacity(data.remaining());
+                inbox.put(data);
+                inbox.flip();
+                src = inbox;
+            } else {
+                src = data;
+            }
+
+            while (src.hasRemaining() && decodeFrame(src, handler)) {
+            }
+
+            // Keep the start of an incomplete frame for the next read
+            if (src == inbox) {
+                inbox.compact();
+                if (inbox.position() == 0) {
+                    inbox = null;
+                }
+            } else if (data.hasRemaining()) {
+                inbox = ByteBuffer.allocate(Math.max(256, data.remaining()));
+                inbox.put(data);
+            }
+        }
+
+        private void ensureInboxCapacity(int extra) throws WebSocketException {
+            if (inbox.remaining() >= extra) {
+                return;
+            }
+            int needed = inbox.position() + extra;
+            if (needed > maxMessageSize + 14) {
+                throw new WebSocketException(CLOSE_TOO_BIG, "Frame too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, Math.min(inbox.capacity() * 2, maxMessageSize + 14)));
+            inbox.flip();
+            bigger.put(inbox);
+            inbox = bigger;
+        }
+
+        private boolean decodeFrame(ByteBuffer src, FrameHandler handler) throws IOException {
+            // Returns false if src doesn't yet hold a whole frame
+            int start = src.position();
+            if (src.remaining() < 2) {
+                return false;
+            }
+            int b0 = src.get() & 0xFF;
+            int b1 = src.get() & 0xFF;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+
+            if ((b0 & 0x70) != 0) {
+                throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Extensions are not supported");
+            }
+            if (!masked) {
+                throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+            }
+            if (length == 126) {
+                if (src.remaining() < 2) {
+                    src.position(start);
+                    return false;
+                }
+                length = src.getShort() & 0xFFFF;
+            } else if (length == 127) {
+                if (src.remaining() < 8) {
+                    src.position(start);
+                    return false;
+                }
+                length = src.getLong();
+            }
+            if (length < 0 || length > maxMessageSize) {
+                throw new WebSocketException(CLOSE_TOO_BIG, "Message too large");
+            }
+            if (src.remaining() < 4 + length) {
+                src.position(start);
+                return false;
+            }
+
+            byte[] mask = new byte[4];
+            src.get(mask);
+            byte[] payload = new byte[(int) length];
+            src.get(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            if (opcode >= CLOSE) {
+                handleControl(opcode, fin, payload, handler);
+            } else {
+                handleData(opcode, fin, payload, handler);
+            }
+            return true;
+        }
+
+        private void handleControl(int opcode, boolean fin, byte[] payload, FrameHandler handler) throws IOException {
+            if (!fin || payload.length > 125) {
+                throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+            }
+            switch (opcode) {
+                case CLOSE:
+                    int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : CLOSE_NORMAL;
+                    handler.onClose(code);
+                    break;
+                case PING:
+                    handler.onPing(payload);
+                    break;
+                case PONG:
+                    break;
+                default:
+                    throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+        }
+
+        private void handleData(int opcode, boolean fin, byte[] payload, FrameHandler handler) throws IOException {
+            if (opcode == CONTINUATION) {
+                if (message == null) {
+                    throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+                }
+                if (messageLength + payload.length > maxMessageSize) {
+                    throw new WebSocketException(CLOSE_TOO_BIG, "Message too large");
+                }
+                if (messageLength + payload.length > message.length) {
+                    message = Arrays.copyOf(message, Math.min(maxMessageSize, Math.max(message.length * 2, messageLength + payload.length)));
+                }
+                System.arraycopy(payload, 0, message, messageLength, payload.length);
+                messageLength += payload.length;
+                if (fin) {
+                    byte[] complete = Arrays.copyOf(message, messageLength);
+                    message = null;
+                    deliver(messageOpcode, complete, handler);
+                }
+            } else if (opcode == TEXT || opcode == BINARY) {
+                if (message != null) {
+                    throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Expected continuation frame");
+                }
+                if (fin) {
+                    deliver(opcode, payload, handler);
+                } else {
+                    message = Arrays.copyOf(payload, Math.max(payload.length, 1024));
+                    messageLength = payload.length;
+                    messageOpcode = opcode;
+                }
+            } else {
+                throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+        }
+
+        private void deliver(int opcode, byte[] payload, FrameHandler handler) throws IOException {
+            if (opcode == TEXT) {
+                handler.onText(new String(payload, StandardCharsets.UTF_8));
+            } else {
+                handler.onBinary(payload);
+            }
+        }
+    }
+}
@@ -0,0 +1,520 @@
+package com.mycompany.chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class WebSocketConnection implements NioEventLoop.Handler, ChannelSubscriptions.Subscriber, WebSocketCodec.FrameHandler {
+
+    // One client connection. Reading, frame decoding and socket writes happen on the
+    // event loop thread, any thread may queue outgoing frames with send().
+    private static final int MAX_REQUEST_HEADER = 8192;
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    private enum State {
+        HANDSHAKE, AUTHENTICATING, OPEN, CLOSED
+    }
+
+    private final WebSocketServer server;
+    private final NioEventLoop loop;
+    private final TlsConnection tls;
+    private final WebSocketCodec.Decoder decoder;
+    private final long createdAt = System.currentTimeMillis();
+    private SelectionKey key;
+
+    private State state = State.HANDSHAKE;
+    private ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+    private String username;
+    private final HashSet<String> channels = new HashSet<>();
+    private final ConcurrentHashMap<String, ChannelState> channelStates = new ConcurrentHashMap<>();
+    private long lastActivity = createdAt;
+    private boolean pingSent = false;
+    private boolean closeAfterFlush = false;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    private static class ChannelState {
+
+        // Newest message id sent from the database, and live events held back while missed
+        // messages are being read. Guarded by the object's lock.
+        long lastSentId = -1;
+        ArrayList<ChannelEvent> held;
+    }
+
+    WebSocketConnection(WebSocketServer server, NioEventLoop loop, TlsConnection tls) {
+        this.server = server;
+        this.loop = loop;
+        this.tls = tls;
+        this.decoder = new WebSocketCodec.Decoder(server.maxMessageSize);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            lastActivity = System.currentTimeMillis();
+            if (!tls.read(this::onData)) {
+                close();
+                return;
+            }
+        }
+        if (key.isValid() && key.isWritable()) {
+            flushQueue();
+        } else {
+            updateInterest();
+        }
+    }
+
+    private void onData(ByteBuffer data) throws IOException {
+        if (state == State.OPEN) {
+            try {
+                decoder.feed(data, this);
+            } catch (WebSocketCodec.WebSocketException e) {
+                send(WebSocketCodec.encodeClose(e.closeCode, e.getMessage()));
+                closeAfterFlush = true;
+                data.position(data.limit());
+            }
+            return;
+        }
+
+        // Collect the HTTP upgrade request, frames sent before the reply are kept with it
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        handshake.write(bytes);
+        if (handshake.size() > MAX_REQUEST_HEADER + server.maxMessageSize) {
+            throw new IOException("Upgrade request too large");
+        }
+        if (state == State.HANDSHAKE) {
+            byte[] received = handshake.toByteArray();
+            int end = indexOfHeaderEnd(received);
+            if (end < 0) {
+                if (received.length > MAX_REQUEST_HEADER) {
+                    throw new IOException("Upgrade request too large");
+                }
+                return;
+            }
+            handshake = new ByteArrayOutputStream();
+            handshake.write(received, end, received.length - end);
+            handleUpgrade(new String(received, 0, end, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static int indexOfHeaderEnd(byte[] bytes) {
+        for (int i = 3; i < bytes.length; i++) {
+            if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void handleUpgrade(String request) {
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        String webSocketKey = headers.get("Sec-WebSocket-Key");
+        if (requestLine.length < 3 || !requestLine[0].equals("GET")
+                || !"websocket".equalsIgnoreCase(headers.get("Upgrade")) || webSocketKey == null
+                || !"13".equals(headers.get("Sec-WebSocket-Version"))) {
+            reject("400 Bad Request", "");
+            return;
+        }
+
+        // Browsers can't set headers on WebSocket requests, so a session token may also be in the query
+        String query = URI.create(requestLine[1]).getQuery();
+        String token = ChatHandler.parseQuery(query).get("token");
+        String authorization = headers.get("Authorization");
+        if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            token = authorization.substring(7).trim();
+        }
+
+        if (token != null) {
+            accept(SessionManager.getInstance().validate(token), webSocketKey);
+        } else if (authorization != null && authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            String credentials;
+            try {
+                credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                credentials = "";
+            }
+            int colon = credentials.indexOf(':');
+            if (colon < 0) {
+                accept(null, webSocketKey);
+                return;
+            }
+            String user = credentials.substring(0, colon);
+            String password = credentials.substring(colon + 1);
+
+            // Password check may have to hash, keep it off the event loop
+            state = State.AUTHENTICATING;
+            server.getWorkers().execute(() -> {
+                boolean valid = server.getAuthenticator().checkCredentials(user, password);
+                loop.execute(() -> accept(valid ? user : null, webSocketKey));
+            });
+        } else {
+            accept(null, webSocketKey);
+        }
+    }
+
+    private void accept(String user, String webSocketKey) {
+        if (closed) {
+            return;
+        }
+        if (user == null) {
+            reject("401 Unauthorized", "WWW-Authenticate: Basic realm=\"chat\"\r\n");
+            return;
+        }
+        username = user;
+        state = State.OPEN;
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + WebSocketCodec.acceptKey(webSocketKey) + "\r\n\r\n";
+        send(response.getBytes(StandardCharsets.ISO_8859_1));
+
+        // Frames the client sent right after its request
+        byte[] early = handshake.toByteArray();
+        handshake = null;
+        if (early.length > 0) {
+            try {
+                onData(ByteBuffer.wrap(early));
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    private void reject(String status, String extraHeaders) {
+        String response = "HTTP/1.1 " + status + "\r\n" + extraHeaders
+                + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+        send(response.getBytes(StandardCharsets.ISO_8859_1));
+        closeAfterFlush = true;
+    }
+
+    @Override
+    public void onText(String text) {
+        JSONObject request;
+        try {
+            request = new JSONObject(text);
+        } catch (JSONException e) {
+            sendError(null, "Invalid JSON");
+            return;
+        }
+        Object requestId = request.opt("requestId");
+        String action = request.optString("action", "");
+        ChatDatabase db = ChatDatabase.getInstance();
+
+        try {
+            switch (action) {
+                case "subscribe": {
+                    String channel = request.getString("channel");
+                    long lastEventId = request.has("lastEventId") ? request.getLong("lastEventId") : -1;
+
+                    // Live events are held back from before subscribing until the missed messages are sent
+                    ChannelState channelState = channelStates.computeIfAbsent(channel, c -> new ChannelState());
+                    if (lastEventId >= 0) {
+                        synchronized (channelState) {
+                            if (channelState.held == null) {
+                                channelState.held = new ArrayList<>();
+                            }
+                        }
+                    }
+                    if (channels.contains(channel) || server.getSubscriptions().subscribe(channel, this)) {
+                        channels.add(channel);
+                        sendAck(requestId, action);
+                        if (lastEventId >= 0) {
+                            server.getWorkers().execute(() -> backfill(channel, lastEventId, channelState));
+                        }
+                    } else {
+                        channelStates.remove(channel);
+                        sendError(requestId, "Too many subscriptions");
+                    }
+                    break;
+                }
+                case "unsubscribe": {
+                    String channel = request.getString("channel");
+                    if (channels.remove(channel)) {
+                        server.getSubscriptions().unsubscribe(channel, this);
+                    }
+                    channelStates.remove(channel);
+                    sendAck(requestId, action);
+                    break;
+                }
+                case "post": {
+                    LocalDateTime sent;
+                    if (request.has("sent")) {
+                        sent = OffsetDateTime.parse(request.getString("sent")).toLocalDateTime();
+                    } else {
+                        sent = LocalDateTime.now(ZoneOffset.UTC);
+                    }
+                    ChatMessage message = new ChatMessage(request.getString("channel"), sent, username, request.getString("message"), "");
+                    // Acknowledged once the writer has committed the batch holding the message
+                    db.submitMessage(message).whenComplete((result, error) -> {
+                        if (error == null) {
+                            sendAck(requestId, action);
+                        } else {
+                            sendError(requestId, "Error saving message");
+                        }
+                    });
+                    break;
+                }
+                case "editMessage": {
+                    long messageID = request.getLong("messageid");
+                    String newMessage = request.getString("message");
+                    server.getWorkers().execute(() -> {
+                        try {
+                            db.editMessage(messageID, username, newMessage);
+                            sendAck(requestId, action);
+                        } catch (SQLException e) {
+                            sendError(requestId, "Error editing message");
+                        }
+                    });
+                    break;
+                }
+                case "deletemessage": {
+                    long messageID = request.getLong("messageid");
+                    server.getWorkers().execute(() -> {
+                        db.deleteMessage(messageID, username);
+                        sendAck(requestId, action);
+                    });
+                    break;
+                }
+                default:
+                    sendError(requestId, "Unknown action: " + action);
+            }
+        } catch (JSONException | DateTimeParseException e) {
+            sendError(requestId, "Invalid request: " + e.getMessage());
+        }
+    }
+
+    private void backfill(String channel, long lastEventId, ChannelState channelState) {
+        long lastSentId = lastEventId;
+        try {
+            lastSentId = ChannelBackfill.send(channel, lastEventId, server.backfillLimit, new ChannelBackfill.Sink() {
+                @Override
+                public void message(ChannelEvent event) throws IOException {
+                    sendBackfill(event.toWebSocketFrame());
+                }
+
+                @Override
+                public void reset(String json) throws IOException {
+                    sendBackfill(WebSocketCodec.encodeText(json));
+                }
+            });
+        } catch (IOException e) {
+            // The client fell behind during the backfill, closed like one falling behind live
+            synchronized (channelState) {
+                channelState.held = null;
+            }
+            disconnect();
+            return;
+        }
+        synchronized (channelState) {
+            channelState.lastSentId = Math.max(channelState.lastSentId, lastSentId);
+            ArrayList<ChannelEvent> held = channelState.held;
+            channelState.held = null;
+            if (held != null) {
+                for (ChannelEvent event : held) {
+                    sendLive(event, channelState);
+                }
+            }
+        }
+    }
+
+    private void sendBackfill(byte[] frame) throws IOException {
+        // A dropped frame would leave a gap in the messages, so the backfill is stopped instead
+        if (!send(frame)) {
+            throw new IOException("Client is too far behind");
+        }
+    }
+
+    private boolean sendLive(ChannelEvent event, ChannelState channelState) {
+        // New messages already sent from the database are skipped, as on an event stream
+        if (event.type.equals("message") && event.message.id <= channelState.lastSentId) {
+            return true;
+        }
+        return send(event.toWebSocketFrame());
+    }
+
+    @Override
+    public void onBinary(byte[] data) throws IOException {
+        throw new WebSocketCodec.WebSocketException(WebSocketCodec.CLOSE_UNSUPPORTED, "Binary messages are not supported");
+    }
+
+    @Override
+    public void onPing(byte[] payload) {
+        send(WebSocketCodec.encode(WebSocketCodec.PONG, payload));
+    }
+
+    @Override
+    public void onClose(int code) {
+        send(WebSocketCodec.encodeClose(WebSocketCodec.CLOSE_NORMAL, ""));
+        closeAfterFlush = true;
+    }
+
+    private void sendAck(Object requestId, String action) {
+        JSONObject json = new JSONObject();
+        json.put("type", "ack");
+        json.put("action", action);
+        if (requestId != null) {
+            json.put("requestId", requestId);
+        }
+        send(WebSocketCodec.encodeText(json.toString()));
+    }
+
+    private void sendError(Object requestId, String error) {
+        JSONObject json = new JSONObject();
+        json.put("type", "error");
+        json.put("message", error);
+        if (requestId != null) {
+            json.put("requestId", requestId);
+        }
+        send(WebSocketCodec.encodeText(json.toString()));
+    }
+
+    public boolean send(byte[] data) {
+        // Queue data for writing, returns false if the client is too far behind
+        if (closed) {
+            return false;
+        }
+        if (queuedBytes.addAndGet(data.length) > server.maxQueuedBytes) {
+            queuedBytes.addAndGet(-data.length);
+            return false;
+        }
+        writeQueue.add(ByteBuffer.wrap(data));
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushQueue);
+        }
+        return true;
+    }
+
+    private void flushQueue() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.peek()) != null) {
+                int before = buffer.remaining();
+                boolean written = tls.write(buffer);
+                queuedBytes.addAndGet(buffer.remaining() - before);
+                if (!written) {
+                    break;
+                }
+                writeQueue.poll();
+            }
+            tls.flush();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (closeAfterFlush && writeQueue.isEmpty() && !tls.hasPendingOutput()) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        boolean pending = tls.hasPendingOutput() || !writeQueue.isEmpty();
+        key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    @Override
+    public boolean deliver(ChannelEvent event) {
+        ChannelState channelState = channelStates.get(event.message.channel);
+        if (channelState == null) {
+            return send(event.toWebSocketFrame());
+        }
+        synchronized (channelState) {
+            if (channelState.held != null) {
+                if (channelState.held.size() >= server.backfillBufferSize) {
+                    return false;
+                }
+                channelState.held.add(event);
+                return true;
+            }
+            return sendLive(event, channelState);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        // Dropped by the subscription registry for falling behind
+        loop.execute(this::close);
+    }
+
+    void tick(long now) {
+        if (state != State.OPEN) {
+            if (now - createdAt > HANDSHAKE_TIMEOUT_MILLIS) {
+                close();
+            }
+            return;
+        }
+        long idle = now - lastActivity;
+        if (idle > server.idleTimeoutMillis) {
+            close();
+        } else if (idle > server.idleTimeoutMillis / 2 && !pingSent) {
+            pingSent = true;
+            send(WebSocketCodec.encode(WebSocketCodec.PING, new byte[0]));
+        } else if (idle <= server.idleTimeoutMillis / 2) {
+            pingSent = false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        state = State.CLOSED;
+        for (String channel : channels) {
+            server.getSubscriptions().unsubscribe(channel, this);
+        }
+        channels.clear();
+        channelStates.clear();
+        writeQueue.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        tls.close();
+        server.connectionClosed(this, loop);
+    }
+}
@@ -0,0 +1,131 @@
+package com.mycompany.chatserver;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+public class WebSocketServer {
+
+    // WebSocket endpoint on its own port. Connections live on selector event loops,
+    // database work and password checks run on a separate worker pool.
+    private final SSLContext sslContext;
+    private final SSLParameters sslParameters;
+    private final ChannelSubscriptions subscriptions;
+    private final ChatAuthenticator authenticator;
+    private final NioServer server;
+    private final ExecutorService workers;
+    private final BufferPool packetBuffers;
+    private final BufferPool appBuffers;
+    private final Map<NioEventLoop, HashSet<WebSocketConnection>> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    final int maxConnections;
+    final int maxMessageSize;
+    final long maxQueuedBytes;
+    final long idleTimeoutMillis;
+    final int backfillLimit;
+    final int backfillBufferSize;
+
+    public WebSocketServer(int port, SSLContext sslContext, SSLParameters sslParameters,
+            ChannelSubscriptions subscriptions, ChatAuthenticator authenticator) throws IOException {
+        this.sslContext = sslContext;
+        this.sslParameters = sslParameters;
+        this.subscriptions = subscriptions;
+        this.authenticator = authenticator;
+
+        maxConnections = ChatConfig.getInt("ws.maxConnections", 20000);
+        maxMessageSize = ChatConfig.getInt("ws.maxMessageSize", 65536);
+        maxQueuedBytes = ChatConfig.getLong("ws.maxQueuedBytes", 1048576);
+        idleTimeoutMillis = ChatConfig.getLong("ws.idleTimeoutSeconds", 300) * 1000;
+        // Same limits as a resumed event stream
+        backfillLimit = ChatConfig.getInt("stream.backfillLimit", 1000);
+        backfillBufferSize = Math.max(1, ChatConfig.getInt("stream.bufferSize", 256));
+
+        // Size buffers from the negotiated session limits of this context
+        SSLEngine probe = sslContext.createSSLEngine();
+        int bufferPoolSize = ChatConfig.getInt("ws.bufferPoolSize", 1024);
+        packetBuffers = new BufferPool(probe.getSession().getPacketBufferSize(), bufferPoolSize);
+        appBuffers = new BufferPool(probe.getSession().getApplicationBufferSize(), bufferPoolSize);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(ChatConfig.getInt("ws.workerThreads", 8), r -> {
+            Thread t = new Thread(r, "ws-worker-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        server = new NioServer("ws", port, ChatConfig.getInt("ws.eventLoops", Runtime.getRuntime().availableProcessors()), this::accept);
+        for (NioEventLoop loop : server.getEventLoops()) {
+            HashSet<WebSocketConnection> loopConnections = new HashSet<>();
+            connections.put(loop, loopConnections);
+            loop.addTicker(() -> {
+                long now = System.currentTimeMillis();
+                for (WebSocketConnection connection : loopConnections.toArray(new WebSocketConnection[0])) {
+                    connection.tick(now);
+                }
+            });
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop();
+        workers.shutdown();
+    }
+
+    private void accept(SocketChannel channel, NioEventLoop loop) throws IOException {
+        if (connectionCount.incrementAndGet() > maxConnections) {
+            connectionCount.decrementAndGet();
+            channel.close();
+            return;
+        }
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(sslParameters);
+
+        TlsConnection tls = new TlsConnection(channel, engine, packetBuffers, appBuffers);
+        WebSocketConnection connection = new WebSocketConnection(this, loop, tls);
+        connection.setKey(loop.register(channel, SelectionKey.OP_READ, connection));
+        connections.get(loop).add(connection);
+    }
+
+    void connectionClosed(WebSocketConnection connection, NioEventLoop loop) {
+        // Called on the connection's event loop
+        if (connections.get(loop).remove(connection)) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    ExecutorService getWorkers() {
+        return workers;
+    }
+
+    ChannelSubscriptions getSubscriptions() {
+        return subscriptions;
+    }
+
+    ChatAuthenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public String getStats() {
+        return "websocket: connections=" + connectionCount.get() + "/" + maxConnections
+                + ", pooledBuffers=" + (packetBuffers.getPooledCount() + appBuffers.getPooledCount());
+    }
+}
@@ -0,0 +1,68 @@
+package com.mycompany.chatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChatDatabaseTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    public void setUp() {
+        // The writer lingers long enough that posted messages are still queued when the database closes
+        System.setProperty("chatserver.db.batchLingerMillis", "10000");
+        System.setProperty("chatserver.db.checkpointIntervalSeconds", "0");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ChatDatabase.getInstance().close();
+        System.clearProperty("chatserver.db.batchLingerMillis");
+        System.clearProperty("chatserver.db.checkpointIntervalSeconds");
+        System.clearProperty("chatserver.db.shards");
+    }
+
+    @Test
+    public void queuedMessagesAreStoredOnClose() throws Exception {
+        assertStoredAfterClose(1);
+    }
+
+    @Test
+    public void queuedMessagesAreStoredOnCloseWithShards() throws Exception {
+        assertStoredAfterClose(3);
+    }
+
+    private void assertStoredAfterClose(int shards) throws Exception {
+        System.setProperty("chatserver.db.shards", Integer.toString(shards));
+        String url = "jdbc:sqlite:" + dir.resolve("chat.db");
+        String[] channels = {"main", "random", "dev", "ops"};
+
+        ChatDatabase db = ChatDatabase.getInstance();
+        db.open(url);
+        List<CompletableFuture<Void>> posted = new ArrayList<>();
+        for (String channel : channels) {
+            for (int i = 0; i < 5; i++) {
+                posted.add(db.submitMessage(new ChatMessage(channel, LocalDateTime.now(), "user", channel + i, "")));
+            }
+        }
+        db.close();
+
+        for (CompletableFuture<Void> future : posted) {
+            future.join();
+        }
+        db.open(url);
+        for (String channel : channels) {
+            assertEquals(5, db.getMessages(channel, -1).size(), channel);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.mycompany.chatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class RecentMessageCacheTest {
+
+    private static ChatMessage message(long id) {
+        ChatMessage message = new ChatMessage("general", LocalDateTime.of(2024, 1, 1, 0, 0).plusSeconds(id), "user", "text " + id, null);
+        message.id = id;
+        return message;
+    }
+
+    private static List<ChatMessage> newestFirst(long... ids) {
+        List<ChatMessage> result = new ArrayList<>();
+        for (int i = ids.length - 1; i >= 0; i--) {
+            result.add(message(ids[i]));
+        }
+        return result;
+    }
+
+    @Test
+    public void failedLoadIsRetried() {
+        RecentMessageCache cache = new RecentMessageCache(10, 100);
+
+        assertThrows(IllegalStateException.class, () -> cache.getNewest("general", 5, (channel, limit) -> {
+            throw new IllegalStateException("Database not open");
+        }));
+        // Changes while no load runs are not collected
+        cache.messageChanged(message(3));
+
+        ArrayList<ChatMessage> result = cache.getNewest("general", 5, (channel, limit) -> newestFirst(1, 2));
+        assertNotNull(result);
+        assertEquals(2, result.size());
+        assertEquals(2, result.get(0).id);
+    }
+
+    @Test
+    public void loadIsAbandonedWhenTooManyChangesArrive() {
+        RecentMessageCache cache = new RecentMessageCache(3, 100);
+
+        assertNull(cache.getNewest("general", 3, (channel, limit) -> {
+            for (long id = 10; id < 20; id++) {
+                cache.messageChanged(message(id));
+            }
+            return newestFirst(1, 2);
+        }));
+
+        ArrayList<ChatMessage> result = cache.getNewest("general", 3, (channel, limit) -> newestFirst(17, 18, 19));
+        assertNotNull(result);
+        assertEquals(19, result.get(0).id);
+    }
+
+    @Test
+    public void changesDuringLoadAreApplied() {
+        RecentMessageCache cache = new RecentMessageCache(10, 100);
+
+        ArrayList<ChatMessage> result = cache.getNewest("general", 5, (channel, limit) -> {
+            cache.messageChanged(message(3));
+            return newestFirst(1, 2);
+        });
+        assertNotNull(result);
+        assertEquals(3, result.size());
+        assertEquals(3, result.get(0).id);
+    }
+}
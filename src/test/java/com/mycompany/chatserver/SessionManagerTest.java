@@ -0,0 +1,45 @@
+package com.mycompany.chatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class SessionManagerTest {
+
+    private final SessionManager sessions = SessionManager.getInstance();
+
+    @Test
+    public void loginCheckedBeforeRevokeGetsNoSession() {
+        // Password verified against the old credentials, then changed before the session is stored
+        long stamp = sessions.stamp("race");
+        sessions.revokeUser("race");
+
+        assertNull(sessions.createSession("race", stamp));
+        assertTrue(sessions.isStale("race", stamp));
+    }
+
+    @Test
+    public void loginAfterRevokeGetsSession() {
+        String old = sessions.createSession("relogin", sessions.stamp("relogin"));
+        assertNotNull(old);
+        sessions.revokeUser("relogin");
+        assertNull(sessions.validate(old));
+
+        String token = sessions.createSession("relogin", sessions.stamp("relogin"));
+        assertNotNull(token);
+        assertEquals("relogin", sessions.validate(token));
+    }
+
+    @Test
+    public void revokeOfOtherUserKeepsLogin() {
+        long stamp = sessions.stamp("kept");
+        sessions.revokeUser("someone-else");
+
+        String token = sessions.createSession("kept", stamp);
+        assertNotNull(token);
+        assertEquals("kept", sessions.validate(token));
+    }
+}